@@ -0,0 +1,106 @@
+package org.eventreducer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over UUIDs. It is safe to add and probe concurrently.
+ */
+class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long size;
+    private final int hashes;
+
+    /**
+     * @param expectedInsertions number of UUIDs the filter is sized for
+     * @param falsePositiveRate false positive rate once that many UUIDs were added
+     */
+    BloomFilter(long expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions <= 0) {
+            throw new IllegalArgumentException("Expected insertions must be positive, got " + expectedInsertions);
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1, got " + falsePositiveRate);
+        }
+        long words = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)) / 64);
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter for " + expectedInsertions + " insertions is too large");
+        }
+        bits = new AtomicLongArray((int) Math.max(1, words));
+        size = bits.length() * 64L;
+        hashes = (int) Math.max(1, Math.round((double) size / expectedInsertions * Math.log(2)));
+    }
+
+    private BloomFilter(AtomicLongArray bits, int hashes) {
+        this.bits = bits;
+        this.size = bits.length() * 64L;
+        this.hashes = hashes;
+    }
+
+    void writeTo(DataOutput output) throws IOException {
+        output.writeInt(bits.length());
+        output.writeInt(hashes);
+        for (int i = 0; i < bits.length(); i++) {
+            output.writeLong(bits.get(i));
+        }
+    }
+
+    static BloomFilter readFrom(DataInput input) throws IOException {
+        AtomicLongArray bits = new AtomicLongArray(input.readInt());
+        int hashes = input.readInt();
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, input.readLong());
+        }
+        return new BloomFilter(bits, hashes);
+    }
+
+    void add(UUID uuid) {
+        long hash1 = hash1(uuid);
+        long hash2 = hash2(uuid);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, size);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long value;
+            while (((value = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, value, value | mask)) {
+            }
+        }
+    }
+
+    /**
+     * @return false if the UUID was definitely never added
+     */
+    boolean mightContain(UUID uuid) {
+        long hash1 = hash1(uuid);
+        long hash2 = hash2(uuid);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, size);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * UUIDs are mostly random already, mixing merely spreads the non-random version bits
+     */
+    private static long hash1(UUID uuid) {
+        return mix(uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits());
+    }
+
+    private static long hash2(UUID uuid) {
+        return mix(uuid.getLeastSignificantBits() + 0x9E3779B97F4A7C15L) | 1;
+    }
+
+    static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.eventreducer;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts journalled entities per concrete class, so that {@link Journal#size(Class)}
+ * doesn't need to look at the entities themselves.
+ *
+ * Counting is O(number of counted classes) and allocation-free; superclasses and interfaces
+ * get the sum of all their counted subclasses.
+ */
+class ClassCounters {
+
+    private static class Counter {
+        private final Class<?> klass;
+        private final LongAdder count = new LongAdder();
+
+        Counter(Class<?> klass) {
+            this.klass = klass;
+        }
+    }
+
+    private final Map<Class<?>, Counter> index = new ConcurrentHashMap<>();
+    private volatile Counter[] counters = new Counter[0];
+
+    void add(Class<?> klass, long delta) {
+        Counter counter = index.get(klass);
+        if (counter == null) {
+            counter = register(klass);
+        }
+        counter.count.add(delta);
+    }
+
+    void increment(Class<?> klass) {
+        add(klass, 1);
+    }
+
+    private synchronized Counter register(Class<?> klass) {
+        Counter counter = index.get(klass);
+        if (counter == null) {
+            counter = new Counter(klass);
+            Counter[] updated = Arrays.copyOf(counters, counters.length + 1);
+            updated[counters.length] = counter;
+            counters = updated;
+            index.put(klass, counter);
+        }
+        return counter;
+    }
+
+    long count(Class<?> klass) {
+        long count = 0;
+        for (Counter counter : counters) {
+            if (klass.isAssignableFrom(counter.klass)) {
+                count += counter.count.sum();
+            }
+        }
+        return count;
+    }
+}
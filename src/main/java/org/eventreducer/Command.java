@@ -77,7 +77,7 @@ public abstract class Command<T> extends Serializable implements Identifiable {
         return Optional.empty();
     }
 
-    <C extends Command<T>> PublisherService<T, C> createPublisher(boolean multiple) {
-        return multiple ? new MultiplePublisherService<>((C) this) : new SinglePublisherService<>((C) this);
+    <C extends Command<T>> PublisherService<T, C> createPublisher(boolean multiple, PublisherConfiguration configuration) {
+        return multiple ? new MultiplePublisherService<>((C) this, configuration) : new SinglePublisherService<>((C) this, configuration);
     }
 }
@@ -0,0 +1,25 @@
+package org.eventreducer;
+
+import lombok.Getter;
+
+/**
+ * This exception signals that a command wasn't published by
+ * {@link Publisher#tryPublish(Command)} because its publisher was at capacity
+ */
+public class CommandRejectedException extends Exception {
+
+    /**
+     * Command that was rejected
+     */
+    @Getter
+    private final Command command;
+
+    public CommandRejectedException(Command command) {
+        this.command = command;
+    }
+
+    @Override
+    public String getMessage() {
+        return "Command " + command + " rejected, publisher is at capacity";
+    }
+}
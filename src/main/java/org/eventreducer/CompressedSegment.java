@@ -0,0 +1,236 @@
+package org.eventreducer;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.SneakyThrows;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only journal segment stored as independently deflated blocks of whole records,
+ * so reading a record inflates a single block.
+ *
+ * File layout:
+ *
+ * <pre>
+ *     ...     deflated blocks
+ *     ...     block index, for every block:
+ *               int   offset of the block within the segment
+ *               int   inflated length
+ *               long  offset of the deflated block within the file
+ *     long    offset of the block index within the file
+ *     int     number of blocks
+ * </pre>
+ *
+ * Blocks are read from the file as needed, it stays open until {@link #close()}.
+ * Inflated blocks are kept in a cache shared by all compressed segments of a journal
+ * (see {@link #blockCache()}).
+ */
+class CompressedSegment implements Closeable {
+
+    /**
+     * Records are grouped into blocks of at least this many bytes, unless the segment ends earlier
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+    /**
+     * Bytes of inflated blocks kept in memory by a block cache
+     */
+    static final long CACHE_SIZE = 64L * BLOCK_SIZE;
+
+    private final FileChannel file;
+    /**
+     * Identifies this segment's blocks in the cache
+     */
+    private final long id;
+    private final Cache<Long, byte[]> cache;
+    private final long size;
+    private final int[] starts;
+    private final int[] lengths;
+    private final long[] offsets;
+
+    private CompressedSegment(FileChannel file, int id, Cache<Long, byte[]> cache) throws IOException {
+        this.file = file;
+        this.id = (long) id << 32;
+        this.cache = cache;
+        size = file.size();
+        ByteBuffer trailer = read(size - 12, 12);
+        long index = trailer.getLong();
+        int count = trailer.getInt();
+        starts = new int[count];
+        lengths = new int[count];
+        offsets = new long[count + 1];
+        ByteBuffer buffer = read(index, count * 16);
+        for (int i = 0; i < count; i++) {
+            starts[i] = buffer.getInt();
+            lengths[i] = buffer.getInt();
+            offsets[i] = buffer.getLong();
+        }
+        offsets[count] = index;
+    }
+
+    /**
+     * Creates a cache of inflated blocks, bounded by {@link #CACHE_SIZE} bytes
+     */
+    static Cache<Long, byte[]> blockCache() {
+        return CacheBuilder.newBuilder().maximumWeight(CACHE_SIZE).
+                weigher((Long block, byte[] bytes) -> bytes.length).build();
+    }
+
+    /**
+     * Opens a compressed segment file
+     *
+     * @param file file to open
+     * @param index segment number, unique among segments sharing the cache
+     * @param cache cache of inflated blocks
+     */
+    static CompressedSegment open(File file, int index, Cache<Long, byte[]> cache) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            return new CompressedSegment(channel, index, cache);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of compressed segment");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Compresses records of a segment into a file and forces it to the storage device
+     *
+     * @param segment segment, records are read from its position up to the end-of-segment marker
+     * @param file file to write
+     */
+    static void write(ByteBuffer segment, File file) throws IOException {
+        ByteBuffer records = segment.duplicate();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream indexOutput = new DataOutputStream(index);
+            byte[] deflated = new byte[BLOCK_SIZE];
+            int count = 0;
+            while (records.remaining() >= 4 && records.getInt(records.position()) != 0) {
+                int start = records.position();
+                int end = start;
+                while (end - start < BLOCK_SIZE && records.limit() - end >= 4 && records.getInt(end) != 0) {
+                    end += 4 + records.getInt(end);
+                }
+                byte[] block = new byte[end - start];
+                records.get(block);
+
+                indexOutput.writeInt(start);
+                indexOutput.writeInt(block.length);
+                indexOutput.writeLong(output.size());
+                deflater.reset();
+                deflater.setInput(block);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    output.write(deflated, 0, deflater.deflate(deflated));
+                }
+                count++;
+            }
+            long indexOffset = output.size();
+            index.writeTo(output);
+            output.writeLong(indexOffset);
+            output.writeInt(count);
+            output.flush();
+            stream.getFD().sync();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns a buffer positioned at <code>offset</code> within the segment, containing
+     * at least the whole record at it. Past the last record, the buffer contains an
+     * end-of-segment marker.
+     */
+    ByteBuffer buffer(int offset) {
+        int block = Arrays.binarySearch(starts, offset);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        if (block < 0 || offset >= starts[block] + lengths[block]) {
+            return ByteBuffer.allocate(4);
+        }
+        byte[] bytes = block(block);
+        int skip = offset - starts[block];
+        return ByteBuffer.wrap(bytes, skip, bytes.length - skip);
+    }
+
+    /**
+     * Writes inflated records to a channel, padded with zeros to <code>length</code> bytes
+     */
+    void transferTo(WritableByteChannel target, int length) throws IOException {
+        int written = 0;
+        for (int i = 0; i < starts.length; i++) {
+            written += write(target, ByteBuffer.wrap(block(i)));
+        }
+        byte[] zeros = new byte[4096];
+        while (written < length) {
+            written += write(target, ByteBuffer.wrap(zeros, 0, Math.min(zeros.length, length - written)));
+        }
+    }
+
+    private static int write(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        return length;
+    }
+
+    @SneakyThrows
+    private byte[] block(int block) {
+        byte[] cached = cache.getIfPresent(id | block);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] deflated = read(offsets[block], (int) (offsets[block + 1] - offsets[block])).array();
+        byte[] bytes = new byte[lengths[block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            inflater.inflate(bytes);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted compressed block " + block, e);
+        } finally {
+            inflater.end();
+        }
+        cache.put(id | block, bytes);
+        return bytes;
+    }
+
+    /**
+     * @return size of the compressed file, in bytes
+     */
+    long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < starts.length; i++) {
+            cache.invalidate(id | i);
+        }
+        file.close();
+    }
+
+}
@@ -7,12 +7,17 @@ import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 import org.reflections.Reflections;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -49,9 +54,15 @@ public class Endpoint extends AbstractService {
      * If true, multiple ({@link ForkJoinPool#getCommonPoolParallelism()}) instances of
      *                           SinglePublisherService will be started for each command, and incoming commands will be
      *                           distributed amongst instances using consistent hashing of their UUIDs. <code>false</code> by default.
+     *                           The journal has to support concurrent journalling in this mode.
      */
     private boolean multiplePublishers = false;
 
+    /**
+     * Publisher configurations by command class, overriding {@link org.eventreducer.annotations.Publishing}
+     */
+    private Map<Class<? extends Command>, PublisherConfiguration> publisherConfigurations;
+
     /**
      * @param packagePrefix Package tree in which commands and events are searched for. All packages will be scanned
      *                      if this parameter is omitted (can take a few seconds or more).
@@ -61,18 +72,24 @@ public class Endpoint extends AbstractService {
      * @param multiplePublishers If true, multiple ({@link ForkJoinPool#getCommonPoolParallelism()}) instances of
      *                           SinglePublisherService will be started for each command, and incoming commands will be
      *                           distributed amongst instances using consistent hashing of their UUIDs. <code>false</code> by default.
+     * @param publisherConfigurations Publisher configurations by command class, overriding
+     *                                {@link org.eventreducer.annotations.Publishing} annotations
      */
     @Builder
-    private Endpoint(String packagePrefix, @NonNull Journal journal, @NonNull IndexFactory indexFactory, @NonNull LockFactory lockFactory, boolean multiplePublishers) {
+    private Endpoint(String packagePrefix, @NonNull Journal journal, @NonNull IndexFactory indexFactory, @NonNull LockFactory lockFactory, boolean multiplePublishers,
+                     @Singular Map<Class<? extends Command>, PublisherConfiguration> publisherConfigurations) {
         this.packagePrefix = packagePrefix;
         this.journal = journal;
         this.indexFactory = indexFactory;
         this.lockFactory = lockFactory;
         this.multiplePublishers = multiplePublishers;
+        this.publisherConfigurations = publisherConfigurations;
+        this.journal.endpoint(this);
     }
 
     private Map<Class<? extends Command>, PublisherService<?, ?>> publisherServices = new HashMap<>();
     private ServiceManager serviceManager;
+    private volatile Map<ByteBuffer, Serializer> serializersByHash;
 
 
     /**
@@ -86,6 +103,30 @@ public class Endpoint extends AbstractService {
         return publisher((Class<Command<T>>)command.getClass()).publish(command);
     }
 
+    /**
+     * Non-blocking publishing interface, see {@link Publisher#tryPublish(Command)}
+     * @param command Command to be published
+     * @param <T> Command return type
+     * @param <C> Command type
+     * @return A completable future containing command's return value and a number of events created,
+     *         completed exceptionally with {@link CommandRejectedException} if the command's publisher is at capacity
+     */
+    public <T, C extends Command<T>> CompletableFuture<Publisher.CommandPublished<T>> tryPublish(C command) {
+        return publisher((Class<Command<T>>)command.getClass()).tryPublish(command);
+    }
+
+    /**
+     * Batch publishing interface, see {@link Publisher#publishAll(Collection)}. Commands
+     * of different classes are handed over to their publishers in batches, too.
+     * @param commands Commands to be published
+     * @param <T> Command return type
+     * @param <C> Command type
+     * @return A completable future of all commands' return values and numbers of events created, in the order of <code>commands</code>
+     */
+    public <T, C extends Command<T>> CompletableFuture<List<Publisher.CommandPublished<T>>> publishAll(Collection<C> commands) {
+        return PublishedBatch.partitioned(commands, command -> (Class<C>) command.getClass(), this::publisher);
+    }
+
     /**
      * Secondary publishing interface, exposes full {@link Publisher} interface
      * @param klass Command class
@@ -101,11 +142,15 @@ public class Endpoint extends AbstractService {
     protected void doStart() {
         journal.endpoint(this);
         indexFactory.setJournal(journal);
+        indexFactory.endpoint(this);
         initializeIndices();
+        indexFactory.indicesConfigured();
         getCommands().forEach(new Consumer<Class<? extends Command>>() {
             @Override @SneakyThrows
             public void accept(Class<? extends Command> klass) {
-                PublisherService publisher = klass.newInstance().createPublisher(multiplePublishers);
+                PublisherConfiguration configuration = publisherConfigurations.containsKey(klass) ?
+                        publisherConfigurations.get(klass) : PublisherConfiguration.of(klass);
+                PublisherService publisher = klass.newInstance().createPublisher(multiplePublishers, configuration);
                 publisher.setEndpoint(Endpoint.this);
                 publisherServices.put(klass, publisher);
                 assert publisherServices.containsKey(klass);
@@ -116,20 +161,29 @@ public class Endpoint extends AbstractService {
         notifyStarted();
     }
 
+    /**
+     * Configures indices of every command and event class, in parallel.
+     *
+     * This is also the recovery phase: {@link IndexFactory} collections are backed by the journal
+     * (see {@link JournalPersistence}), so every index added is populated with the journalled
+     * records of its class. The endpoint doesn't become healthy until this is done.
+     */
     private void initializeIndices() {
         Set<Class<? extends Serializer>> serializers = getSerializers();
+        AtomicInteger done = new AtomicInteger();
         long e0 = System.nanoTime();
         serializers.parallelStream().forEach(t -> {
             try {
                 Serializer s = t.newInstance();
                 Class serializable = s.getClass().getAnnotation(org.eventreducer.annotations.Serializer.class).value();
-                log.info("{}: Configuring indices", serializable.getSimpleName());
+                log.info("{}: Configuring indices, {} journalled record(s)", serializable.getSimpleName(), journal.size(serializable));
                 long t0 = System.nanoTime();
                 s.configureIndices(indexFactory);
                 long t1 = System.nanoTime();
-                log.info("{}: Done configuring indices, elapsed time {} seconds.",
+                log.info("{}: Done configuring indices, elapsed time {} seconds ({}/{}).",
                         serializable.getSimpleName(),
-                        TimeUnit.SECONDS.convert(t1-t0, TimeUnit.NANOSECONDS));
+                        TimeUnit.SECONDS.convert(t1-t0, TimeUnit.NANOSECONDS),
+                        done.incrementAndGet(), serializers.size());
 
             } catch (InstantiationException | IllegalAccessException e) {
                 log.error("Error while initializing index factory", e);
@@ -148,6 +202,32 @@ public class Endpoint extends AbstractService {
         notifyStopped();
     }
 
+    /**
+     * Looks up a serializer by its layout hash (as returned by {@link Serializer#hash()}).
+     *
+     * @param hash buffer with the layout hash as its remaining content; it is not consumed
+     * @return serializer, if any is known for this layout
+     */
+    public Optional<Serializer> serializer(ByteBuffer hash) {
+        if (serializersByHash == null) {
+            synchronized (this) {
+                if (serializersByHash == null) {
+                    Map<ByteBuffer, Serializer> serializers = new HashMap<>();
+                    for (Class<? extends Serializer> klass : getSerializers()) {
+                        try {
+                            Serializer serializer = klass.newInstance();
+                            serializers.put(ByteBuffer.wrap(serializer.hash()), serializer);
+                        } catch (InstantiationException | IllegalAccessException e) {
+                            log.error("Error while instantiating serializer", e);
+                        }
+                    }
+                    serializersByHash = serializers;
+                }
+            }
+        }
+        return Optional.ofNullable(serializersByHash.get(hash));
+    }
+
     private Set<Class<? extends Serializer>> getSerializers() {
         Reflections reflections = packagePrefix == null ? new Reflections() : new Reflections(packagePrefix);
         return reflections.getSubTypesOf(Serializer.class);
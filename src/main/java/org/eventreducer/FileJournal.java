@@ -0,0 +1,499 @@
+package org.eventreducer;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.experimental.Accessors;
+import com.google.common.cache.Cache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.eventreducer.hlc.PhysicalTimeProvider;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable journal that appends records to memory-mapped segment files
+ * (see {@link SegmentedJournal} for the record layout).
+ *
+ * With {@link #compression(boolean)} enabled, segments that all committed records have moved
+ * past are compressed in the background into blocks of whole records (see {@link CompressedSegment}),
+ * and their uncompressed files are removed. A command that fails to be journalled is erased
+ * only after the last committed record, so it never reaches back into a compressed segment.
+ *
+ * When records are forced after the journal has moved on to a new segment, everything journalled
+ * so far is forced to the storage device, and a checkpoint file records the position up to which that was done
+ * along with the state recovery would otherwise rebuild from the records before it
+ * (see {@link SegmentedJournal.Checkpoint}), so that recovery only reads records after it.
+ * Closing the journal checkpoints all of it.
+ *
+ * Records are looked up by UUID through a memory-mapped hash index file (see {@link MappedUUIDIndex}),
+ * forced along with checkpoints, so only records after the last checkpoint are indexed on open.
+ * If the index file is missing or lags behind the checkpoint, the records it lacks are indexed, too.
+ */
+@Slf4j
+public class FileJournal extends SegmentedJournal implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Placeholder for compressed segments in {@link #segments}
+     */
+    private static final ByteBuffer COMPRESSED = ByteBuffer.allocate(0);
+
+    /**
+     * Directory segment files are stored in
+     */
+    @Getter @Accessors(fluent = true)
+    private final File directory;
+
+    /**
+     * If true, {@link #saveAsync(Command, Stream)} forces records to the storage device in the
+     * background, together with those of commands saved meanwhile, so publishers don't flush.
+     * Otherwise, records are forced on {@link #flush()}, which publishers call once per batch
+     * of commands. <code>false</code> by default.
+     */
+    @Getter @Setter @Accessors(fluent = true)
+    private volatile boolean groupCommit = false;
+
+    /**
+     * If true, segments are compressed once they are no longer appended to. <code>false</code> by default.
+     */
+    @Getter @Accessors(fluent = true)
+    private volatile boolean compression = false;
+
+    private final Map<Integer, FileChannel> channels = new ConcurrentHashMap<>();
+    private final Map<Integer, CompressedSegment> compressedSegments = new ConcurrentHashMap<>();
+    /**
+     * Inflated blocks of all compressed segments
+     */
+    private final Cache<Long, byte[]> blockCache = CompressedSegment.blockCache();
+    /**
+     * Segments before this one are compressed or scheduled to be. Guarded by this journal's monitor.
+     */
+    private int compressionScheduled;
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("journal-compressor-%d").setDaemon(true).build());
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("journal-flusher-%d").setDaemon(true).build());
+    /**
+     * Commands saved asynchronously that aren't forced yet, in journal order
+     */
+    private final Queue<PendingCommand> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /**
+     * Guards forcing, which doesn't hold up journalling
+     */
+    private final Object forceLock = new Object();
+    private int unflushedSegment;
+    /**
+     * Position of the last checkpoint written
+     */
+    private long checkpoint;
+    /**
+     * Position up to which records are on the storage device
+     */
+    private volatile long forced;
+    private MappedUUIDIndex mappedUUIDIndex;
+
+    public FileJournal(PhysicalTimeProvider physicalTimeProvider, File directory) throws IOException {
+        this(physicalTimeProvider, directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public FileJournal(PhysicalTimeProvider physicalTimeProvider, File directory, int segmentSize) throws IOException {
+        super(physicalTimeProvider, segmentSize);
+        this.directory = directory;
+        open();
+    }
+
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create journal directory " + directory);
+        }
+        int index = 0;
+        while (segmentFile(index).exists() || compressedSegmentFile(index).exists()) {
+            new File(compressedSegmentFile(index).getPath() + ".tmp").delete();
+            if (compressedSegmentFile(index).exists()) {
+                // the uncompressed file may have outlived its compression
+                segmentFile(index).delete();
+                compressedSegments.put(index, CompressedSegment.open(compressedSegmentFile(index), index, blockCache));
+                segments.add(COMPRESSED);
+            } else {
+                segments.add(allocateSegment(index));
+            }
+            index++;
+        }
+        if (segments.isEmpty()) {
+            segments.add(allocateSegment(0));
+        }
+        log.info("Opening journal {}", directory);
+        Checkpoint checkpoint = readCheckpoint();
+        this.checkpoint = checkpoint == null ? 0 : checkpoint.position();
+        mappedUUIDIndex = new MappedUUIDIndex(new File(directory, "index"));
+        uuidIndex = mappedUUIDIndex;
+        recover(checkpoint);
+        if (mappedUUIDIndex.position() < this.checkpoint) {
+            // records before the checkpoint were indexed again by recovery
+            mappedUUIDIndex.force(this.checkpoint);
+        }
+        unflushedSegment = (int) (end() / segmentSize());
+        forced = end();
+    }
+
+    private File segmentFile(int index) {
+        return new File(directory, String.format("%010d.segment", index));
+    }
+
+    private File compressedSegmentFile(int index) {
+        return new File(directory, String.format("%010d.zsegment", index));
+    }
+
+    private File checkpointFile() {
+        return new File(directory, "checkpoint");
+    }
+
+    /**
+     * Reads the checkpoint file, which holds a {@link Checkpoint} followed by
+     * the CRC32 checksum of it
+     *
+     * @return checkpoint, or null if there's no valid checkpoint
+     */
+    private Checkpoint readCheckpoint() {
+        if (!checkpointFile().exists()) {
+            return null;
+        }
+        try {
+            byte[] contents = Files.readAllBytes(checkpointFile().toPath());
+            CRC32 crc = new CRC32();
+            if (contents.length > 4) {
+                crc.update(contents, 0, contents.length - 4);
+            }
+            if (contents.length <= 4 || ByteBuffer.wrap(contents, contents.length - 4, 4).getInt() != (int) crc.getValue()) {
+                log.warn("Invalid checkpoint in journal {}, reading all records", directory);
+                return null;
+            }
+            return Checkpoint.readFrom(new DataInputStream(new ByteArrayInputStream(contents, 0, contents.length - 4)));
+        } catch (IOException e) {
+            log.warn("Can't read checkpoint of journal " + directory + ", reading all records", e);
+            return null;
+        }
+    }
+
+    /**
+     * Records that everything before the checkpoint's position is on the storage device
+     */
+    private void writeCheckpoint(Checkpoint checkpoint) throws IOException {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(contents);
+        checkpoint.writeTo(output);
+        CRC32 crc = new CRC32();
+        crc.update(contents.toByteArray());
+        output.writeInt((int) crc.getValue());
+        File temporaryFile = new File(checkpointFile().getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temporaryFile)) {
+            contents.writeTo(stream);
+            stream.getFD().sync();
+        }
+        Files.move(temporaryFile.toPath(), checkpointFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(directory);
+        this.checkpoint = checkpoint.position();
+    }
+
+    /**
+     * Forces a directory to the storage device, so that files renamed into it survive a crash.
+     * Not every platform supports it, failures are ignored.
+     */
+    static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("Can't force directory {}", directory);
+        }
+    }
+
+    @Override
+    protected ByteBuffer allocateSegment(int index) throws IOException {
+        FileChannel channel = new RandomAccessFile(segmentFile(index), "rw").getChannel();
+        channels.put(index, channel);
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize());
+    }
+
+    @Override
+    protected ByteBuffer buffer(long position) {
+        int index = (int) (position / segmentSize());
+        int offset = (int) (position % segmentSize());
+        // compressed segments are registered before their placeholders are set
+        ByteBuffer segment = segments.get(index);
+        if (segment == COMPRESSED) {
+            return compressedSegments.get(index).buffer(offset);
+        }
+        ByteBuffer buffer = segment.duplicate();
+        buffer.position(offset);
+        return buffer;
+    }
+
+    /**
+     * Enables or disables compression of segments that all committed records have moved past.
+     * Enabling it schedules compression of all such existing segments.
+     *
+     * @param compression true to enable compression
+     * @return this journal
+     */
+    public synchronized FileJournal compression(boolean compression) {
+        this.compression = compression;
+        committed(end());
+        return this;
+    }
+
+    /**
+     * Schedules compression of segments before the one <code>end</code> is in,
+     * which are never written to again
+     */
+    @Override
+    protected void committed(long end) {
+        if (!compression) {
+            return;
+        }
+        for (; compressionScheduled < end / segmentSize(); compressionScheduled++) {
+            int index = compressionScheduled;
+            compressor.submit(() -> compress(index));
+        }
+    }
+
+    private void compress(int index) {
+        if (compressedSegments.containsKey(index)) {
+            return;
+        }
+        try {
+            File temporaryFile = new File(compressedSegmentFile(index).getPath() + ".tmp");
+            CompressedSegment.write(segments.get(index), temporaryFile);
+            if (!temporaryFile.renameTo(compressedSegmentFile(index))) {
+                throw new IOException("Can't rename " + temporaryFile);
+            }
+            syncDirectory(directory);
+            CompressedSegment segment = CompressedSegment.open(compressedSegmentFile(index), index, blockCache);
+            compressedSegments.put(index, segment);
+            segments.set(index, COMPRESSED);
+            FileChannel channel = channels.remove(index);
+            if (channel != null) {
+                channel.close();
+            }
+            segmentFile(index).delete();
+            log.info("Compressed segment {} of journal {} to {} bytes", index, directory, segment.size());
+        } catch (Exception e) {
+            log.error("Error while compressing segment " + index + " of journal " + directory, e);
+        }
+    }
+
+    /**
+     * Transfers uncompressed segments straight from their files
+     */
+    @Override
+    protected void transferTo(int index, int length, WritableByteChannel target) throws IOException {
+        FileChannel channel = channels.get(index);
+        // the channel is closed once its segment is compressed
+        if (channel == null || segments.get(index) == COMPRESSED) {
+            compressedSegments.get(index).transferTo(target, length);
+            return;
+        }
+        long transferred = 0;
+        while (transferred < length) {
+            transferred += channel.transferTo(transferred, length - transferred, target);
+        }
+    }
+
+    @Override
+    protected void transferFrom(ReadableByteChannel source, int index, int length) throws IOException {
+        FileChannel channel = channels.get(index);
+        long transferred = 0;
+        while (transferred < length) {
+            long count = channel.transferFrom(source, transferred, length - transferred);
+            if (count == 0) {
+                throw new EOFException("Unexpected end of export");
+            }
+            transferred += count;
+        }
+    }
+
+    @Override
+    public synchronized void importFrom(ReadableByteChannel source) throws IOException {
+        super.importFrom(source);
+        flush();
+    }
+
+    @Override
+    public void flush() {
+        force();
+    }
+
+    @Override
+    protected boolean groupsFlushes() {
+        return groupCommit;
+    }
+
+    /**
+     * In group commit mode, returns as soon as the command is journalled and forces it
+     * in the background, so that the next commands are journalled while earlier ones are
+     * being forced. Commands journalled in the meantime are forced together, and futures
+     * complete in journal order. Otherwise, saves and forces the command before returning.
+     */
+    @Override
+    public CompletableFuture<Long> saveAsync(Command command, Stream<Event> events) {
+        if (!groupCommit) {
+            return super.saveAsync(command, events);
+        }
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        synchronized (this) {
+            try {
+                long count = save(command, events);
+                pending.add(new PendingCommand(end(), count, future));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+                return future;
+            }
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            flusher.execute(this::flushPending);
+        }
+        return future;
+    }
+
+    private static class PendingCommand {
+        private final long end;
+        private final long count;
+        private final CompletableFuture<Long> future;
+
+        PendingCommand(long end, long count, CompletableFuture<Long> future) {
+            this.end = end;
+            this.count = count;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Forces everything journalled so far and completes futures of the commands it covers
+     */
+    private void flushPending() {
+        flushScheduled.set(false);
+        if (pending.isEmpty()) {
+            return;
+        }
+        long forced;
+        try {
+            forced = force();
+        } catch (Throwable t) {
+            PendingCommand command;
+            while ((command = pending.poll()) != null) {
+                command.future.completeExceptionally(t);
+            }
+            return;
+        }
+        PendingCommand command;
+        while ((command = pending.peek()) != null && command.end <= forced) {
+            pending.poll();
+            command.future.complete(command.count);
+        }
+    }
+
+    /**
+     * Forces all segments written to since the last call to the storage device,
+     * and checkpoints everything forced if earlier segments were among them
+     *
+     * @return position up to which records are on the storage device
+     */
+    @SneakyThrows
+    long force() {
+        long end;
+        synchronized (forceLock) {
+            boolean sealed = end() / segmentSize() > unflushedSegment;
+            Checkpoint checkpoint = sealed ? checkpoint() : null;
+            end = sealed ? checkpoint.position() : end();
+            int last = (int) (end / segmentSize());
+            forceSegments(last);
+            if (checkpoint != null) {
+                mappedUUIDIndex.force(end);
+                writeCheckpoint(checkpoint);
+            }
+            unflushedSegment = last;
+            if (end <= forced) {
+                return end;
+            }
+            forced = end;
+        }
+        signalSubscriptions();
+        return end;
+    }
+
+    /**
+     * Records are durable once forced to the storage device
+     */
+    @Override
+    public long durablePosition() {
+        return forced;
+    }
+
+    /**
+     * Forces segments written to since the last call, up to the given one
+     */
+    private void forceSegments(int last) {
+        for (int i = unflushedSegment; i <= last && i < segments.size(); i++) {
+            ByteBuffer segment = segments.get(i);
+            if (segment instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) segment).force();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushPending();
+        compressor.shutdown();
+        try {
+            compressor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Checkpoint checkpoint = checkpoint();
+        if (checkpoint.position() > this.checkpoint) {
+            synchronized (forceLock) {
+                forceSegments((int) (checkpoint.position() / segmentSize()));
+                mappedUUIDIndex.force(checkpoint.position());
+                writeCheckpoint(checkpoint);
+            }
+        }
+        for (FileChannel channel : channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+        segments.clear();
+        for (CompressedSegment segment : compressedSegments.values()) {
+            segment.close();
+        }
+        compressedSegments.clear();
+        mappedUUIDIndex.close();
+    }
+}
@@ -55,4 +55,29 @@ public abstract class IndexFactory implements EndpointComponent {
     }
 
     public abstract <O> IndexedCollection<O> getIndexedCollection(Class<O> klass);
+
+    /**
+     * Invoked by the endpoint once indices of all commands and events are configured,
+     * before it starts accepting commands. Does nothing by default.
+     */
+    public void indicesConfigured() {
+    }
+
+    /**
+     * Invoked by publishers right before a command is journalled. Does nothing by default.
+     *
+     * @return token to pass to {@link #indexed(long)}
+     */
+    public long journalling() {
+        return -1;
+    }
+
+    /**
+     * Invoked by publishers once a command is indexed, or has failed to be journalled or indexed.
+     * Does nothing by default.
+     *
+     * @param token token returned by {@link #journalling()} for the command
+     */
+    public void indexed(long token) {
+    }
 }
@@ -7,9 +7,20 @@ import org.apache.commons.net.ntp.TimeStamp;
 import org.eventreducer.hlc.HybridTimestamp;
 import org.eventreducer.hlc.PhysicalTimeProvider;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 public abstract class Journal implements EndpointComponent {
@@ -18,6 +29,18 @@ public abstract class Journal implements EndpointComponent {
     @Getter @Setter @Accessors(fluent = true)
     private Endpoint endpoint;
     private HybridTimestamp timestamp;
+    private final List<JournalSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    /**
+     * Executor delivering events to subscriptions, shared by all journals by default.
+     * Subscriptions only occupy its threads while they have events to deliver.
+     */
+    @Getter @Setter @Accessors(fluent = true)
+    private Executor subscriptionExecutor = JournalSubscription.DEFAULT_EXECUTOR;
+    /**
+     * Replication that has to acknowledge commands before {@link #commit(Command, Stream)} completes
+     */
+    volatile ReplicationServer synchronousReplication;
 
     public Journal(PhysicalTimeProvider physicalTimeProvider) {
         this.timestamp = new HybridTimestamp(physicalTimeProvider);
@@ -25,27 +48,357 @@ public abstract class Journal implements EndpointComponent {
 
 
     public long save(Command command, Stream<Event> events) throws Exception {
-        TimeStamp commandTimestamp = new TimeStamp(timestamp.update());
+        TimeStamp commandTimestamp = nextTimestamp();
         command.timestamp(commandTimestamp);
 
         if (!(command instanceof EphemeralCommand)) {
-            return  journal(command, events.map(event -> event.command(command).timestamp(new TimeStamp(timestamp.update()))));
+            // subscriptions are signalled by journals once records are durable
+            return journal(command, events.map(event -> event.command(command).timestamp(nextTimestamp())));
         }
 
         return 0;
     }
 
+    /**
+     * Makes this journal timestamp records with another journal's clock, so that
+     * timestamps of both are ordered
+     */
+    void shareClock(Journal journal) {
+        timestamp = journal.timestamp;
+    }
+
+    /**
+     * Publishers may be saving commands concurrently, and the clock itself is not thread-safe
+     */
+    private TimeStamp nextTimestamp() {
+        synchronized (timestamp) {
+            return new TimeStamp(timestamp.update());
+        }
+    }
+
     protected abstract long journal(Command command, Stream<Event> events);
+
+    /**
+     * Whether journalled events are the events given to {@link #journal(Command, Stream)}, as
+     * stamped by {@link #save(Command, Stream)}. If so, publishers index these events right away;
+     * otherwise, they read them back with {@link #events(Command)} first.
+     *
+     * Journals that filter, replace or otherwise alter events while journalling them should
+     * return <code>false</code>. <code>true</code> by default.
+     */
+    protected boolean storesEventsAsGiven() {
+        return true;
+    }
+
+    /**
+     * Saves a command and its events like {@link #save(Command, Stream)}, but lets the caller
+     * go on while the records are being made durable. Commands are journalled in the order
+     * of calls, and returned futures complete in that order, too.
+     *
+     * By default, saves and {@link #flush() flushes} the command before returning.
+     *
+     * @param command command
+     * @param events command's events
+     * @return future completed with the number of journalled events once they are durable,
+     *         or exceptionally if they can't be journalled or made durable
+     */
+    public CompletableFuture<Long> saveAsync(Command command, Stream<Event> events) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        try {
+            long count = save(command, events);
+            flush();
+            future.complete(count);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Whether {@link #saveAsync(Command, Stream)} makes commands durable without flushing
+     * each of them on its own, for example by forcing concurrently saved commands together
+     * in the background. If not, publishers {@link #save(Command, Stream) save} a batch
+     * of commands and {@link #flush() flush} once at the end of it instead.
+     *
+     * <code>false</code> by default.
+     */
+    protected boolean groupsFlushes() {
+        return false;
+    }
+
+    /**
+     * Saves a command with {@link #saveAsync(Command, Stream)} and, if a standby replicates this
+     * journal synchronously (see {@link ReplicationServer}), waits for the standby to acknowledge it, too.
+     * Publishers commit commands this way.
+     */
+    CompletableFuture<Long> commit(Command command, Stream<Event> events) {
+        return replicated(saveAsync(command, events));
+    }
+
+    /**
+     * If a standby replicates this journal synchronously, combines a future of saved records
+     * with the acknowledgement of everything durable by the time they are. The position
+     * to acknowledge is only taken then, as journals may not have advanced it before
+     * (see {@link TieredJournal}).
+     *
+     * @param saved future completed once the records are durable
+     * @return future completed once the records are durable and acknowledged
+     */
+    CompletableFuture<Long> replicated(CompletableFuture<Long> saved) {
+        ReplicationServer replication = synchronousReplication();
+        if (replication == null) {
+            return saved;
+        }
+        return saved.thenCompose(count -> replication.acknowledged(durablePosition()).thenApply(acknowledged -> count));
+    }
+
+    /**
+     * @return replication that has to acknowledge commands, or null
+     */
+    ReplicationServer synchronousReplication() {
+        return synchronousReplication;
+    }
+
+    /**
+     * Journals a command and its events that already have timestamps, keeping them,
+     * for journals moving records to another one. Timestamps have to come from a clock
+     * shared with this journal (see {@link #shareClock(Journal)}), so that they are ordered
+     * with the ones it assigns itself.
+     */
+    long saveStamped(Command command, Stream<Event> events) {
+        if (command instanceof EphemeralCommand) {
+            return 0;
+        }
+        return journal(command, events);
+    }
+
+    /**
+     * Makes everything journalled so far durable, so journals can defer expensive syncs
+     * until then (group commit).
+     *
+     * Does nothing by default.
+     *
+     * @throws Exception if records can't be made durable
+     */
+    public void flush() throws Exception {
+    }
+
     public abstract long size(Class<? extends Serializable> klass);
 
     public abstract Optional<Event> findEvent(UUID uuid);
     public abstract Optional<Command> findCommand(UUID uuid);
 
+    /**
+     * Checks whether an event was journalled. Unlike {@link #findEvent(UUID)},
+     * journals don't have to read the event to answer.
+     *
+     * @param uuid event UUID
+     * @return true if the event was journalled
+     */
+    public boolean containsEvent(UUID uuid) {
+        return findEvent(uuid).isPresent();
+    }
+
+    /**
+     * Checks whether a command was journalled. Unlike {@link #findCommand(UUID)},
+     * journals don't have to read the command to answer.
+     *
+     * @param uuid command UUID
+     * @return true if the command was journalled
+     */
+    public boolean containsCommand(UUID uuid) {
+        return findCommand(uuid).isPresent();
+    }
+
     public abstract Iterator<Event> eventIterator(Class<? extends Event> klass);
     public abstract Iterator<Command> commandIterator(Class<? extends Command> klass);
 
+    /**
+     * Splits iteration over events of a class, for parallel streams:
+     *
+     * <pre>
+     *     StreamSupport.stream(journal.eventSpliterator(klass), true)
+     * </pre>
+     *
+     * By default, {@link #eventIterator(Class)} is split into batches of unknown size.
+     *
+     * @param klass event class
+     * @return spliterator of events
+     */
+    public Spliterator<Event> eventSpliterator(Class<? extends Event> klass) {
+        return Spliterators.spliteratorUnknownSize(eventIterator(klass), Spliterator.NONNULL);
+    }
+
+    /**
+     * Splits iteration over commands of a class, for parallel streams.
+     *
+     * By default, {@link #commandIterator(Class)} is split into batches of unknown size.
+     *
+     * @param klass command class
+     * @return spliterator of commands
+     * @see #eventSpliterator(Class)
+     */
+    public Spliterator<Command> commandSpliterator(Class<? extends Command> klass) {
+        return Spliterators.spliteratorUnknownSize(commandIterator(klass), Spliterator.NONNULL);
+    }
+
     public abstract Stream<Event> events(Command command);
 
+    /**
+     * Iterates over events with timestamps in the given range, in timestamp order
+     *
+     * By default, filters {@link #eventIterator(Class)} by timestamp and sorts the events found,
+     * journals that can look up timestamps faster override it.
+     *
+     * @param from lower bound (inclusive)
+     * @param to upper bound (exclusive)
+     * @param klass event class
+     * @return iterator of events
+     */
+    public Iterator<Event> eventsBetween(TimeStamp from, TimeStamp to, Class<? extends Event> klass) {
+        return between(eventIterator(klass), from, to, Event::timestamp);
+    }
+
+    /**
+     * Iterates over commands with timestamps in the given range, in timestamp order
+     *
+     * By default, filters {@link #commandIterator(Class)} by timestamp and sorts the commands found,
+     * journals that can look up timestamps faster override it.
+     *
+     * @param from lower bound (inclusive)
+     * @param to upper bound (exclusive)
+     * @param klass command class
+     * @return iterator of commands
+     */
+    public Iterator<Command> commandsBetween(TimeStamp from, TimeStamp to, Class<? extends Command> klass) {
+        return between(commandIterator(klass), from, to, Command::timestamp);
+    }
+
+    private static <T> Iterator<T> between(Iterator<T> iterator, TimeStamp from, TimeStamp to, Function<T, TimeStamp> timestamp) {
+        List<T> found = new ArrayList<>();
+        iterator.forEachRemaining(o -> {
+            TimeStamp t = timestamp.apply(o);
+            if (HybridTimestamp.compare(t, from) >= 0 && HybridTimestamp.compare(t, to) < 0) {
+                found.add(o);
+            }
+        });
+        found.sort((o1, o2) -> HybridTimestamp.compare(timestamp.apply(o1), timestamp.apply(o2)));
+        return found.iterator();
+    }
+
+    /**
+     * Returns the position right after the last journalled record. Positions are opaque,
+     * monotonically increasing values, only meaningful to the journal that returned them.
+     *
+     * @return current position
+     * @throws UnsupportedOperationException if the journal doesn't support positions (default)
+     */
+    public long position() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't support positions");
+    }
+
+    /**
+     * Returns the position up to which records are durable, that is, won't be lost
+     * if the process or the machine crashes.
+     *
+     * By default, records are durable as soon as they are journalled.
+     *
+     * @return position not greater than {@link #position()}
+     * @throws UnsupportedOperationException if the journal doesn't support positions
+     */
+    public long durablePosition() {
+        return position();
+    }
+
+    /**
+     * Iterates over commands and events journalled between two positions, in journal order
+     *
+     * @param from position to start at (inclusive)
+     * @param to position to stop at (exclusive), typically obtained from {@link #position()}
+     * @return iterator of commands and events
+     * @throws UnsupportedOperationException if the journal doesn't support positions (default)
+     */
+    public JournalIterator<Serializable> iterator(long from, long to) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't support positions");
+    }
+
+    /**
+     * Writes everything journalled so far to a channel as raw records, without deserializing them
+     *
+     * @param target channel to write to
+     * @throws IOException if records can't be read or written
+     * @throws UnsupportedOperationException if the journal doesn't support exports (default)
+     */
+    public void exportTo(WritableByteChannel target) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't support exports");
+    }
+
+    /**
+     * Loads records written by {@link #exportTo(WritableByteChannel)} into an empty journal
+     *
+     * @param source channel to read from
+     * @throws IOException if records can't be read or written
+     * @throws IllegalStateException if the journal isn't empty
+     * @throws UnsupportedOperationException if the journal doesn't support imports (default)
+     */
+    public void importFrom(ReadableByteChannel source) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't support imports");
+    }
+
+    /**
+     * Subscribes to events journalled from now on
+     *
+     * @see #subscribe(JournalSubscriber, long)
+     */
+    public JournalSubscription subscribe(JournalSubscriber subscriber) {
+        return subscribe(subscriber, position());
+    }
+
+    /**
+     * Subscribes to events journalled since <code>position</code>, delivering them in journal
+     * order as they become durable, that is, up to {@link #durablePosition()}.
+     *
+     * @param subscriber subscriber
+     * @param position position to start at, typically the last one passed to
+     *                 {@link JournalSubscriber#onNext(Event, long)} before a restart
+     * @return subscription
+     * @throws UnsupportedOperationException if the journal doesn't support positions
+     */
+    public JournalSubscription subscribe(JournalSubscriber subscriber, long position) {
+        JournalSubscription subscription = new JournalSubscription(this, subscriber, position);
+        subscriptions.add(subscription);
+        subscription.start();
+        return subscription;
+    }
+
+    void unsubscribe(JournalSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Wakes subscriptions up and runs listeners, invoked by journals whenever
+     * {@link #durablePosition()} advances
+     */
+    void signalSubscriptions() {
+        for (JournalSubscription subscription : subscriptions) {
+            subscription.signal();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Adds a listener run whenever records become durable
+     */
+    void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
     public boolean isEmpty(Class<? extends Serializable> klass) {
         return size(klass) == 0;
     }
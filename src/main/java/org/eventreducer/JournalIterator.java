@@ -0,0 +1,16 @@
+package org.eventreducer;
+
+import java.util.Iterator;
+
+/**
+ * Iterator over records between two journal positions (see {@link Journal#iterator(long, long)})
+ */
+public interface JournalIterator<T> extends Iterator<T> {
+
+    /**
+     * @return position right after the last record returned by {@link #next()},
+     *         or the starting position if nothing was returned yet
+     */
+    long position();
+
+}
@@ -11,6 +11,7 @@ import java.sql.Connection;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.UUID;
 import java.util.stream.StreamSupport;
 
@@ -74,6 +75,13 @@ public class JournalPersistence<O extends Identifiable> implements Persistence<O
             this.klass = klass;
         }
 
+        /**
+         * @return class of the records in this set
+         */
+        Class<O> klass() {
+            return klass;
+        }
+
         @Override
         public int size() {
             return (int) journal.size((Class<? extends org.eventreducer.Serializable>) klass);
@@ -87,10 +95,10 @@ public class JournalPersistence<O extends Identifiable> implements Persistence<O
         @Override
         public boolean contains(Object o) {
             if (Event.class.isAssignableFrom(o.getClass())) {
-                return journal.findEvent(((Event)o).uuid()).isPresent();
+                return journal.containsEvent(((Event)o).uuid());
             }
             if (Command.class.isAssignableFrom(o.getClass())) {
-                return journal.findCommand(((Command)o).uuid()).isPresent();
+                return journal.containsCommand(((Command)o).uuid());
             }
             return false;
         }
@@ -104,14 +112,23 @@ public class JournalPersistence<O extends Identifiable> implements Persistence<O
             }
         }
 
+        @Override
+        public Spliterator<O> spliterator() {
+            if (Event.class.isAssignableFrom(klass)) {
+                return (Spliterator<O>) journal.eventSpliterator((Class<? extends Event>) klass);
+            } else {
+                return (Spliterator<O>) journal.commandSpliterator((Class<? extends Command>) klass);
+            }
+        }
+
         @Override
         public Object[] toArray() {
-            return StreamSupport.stream(spliterator(), false).toArray();
+            return StreamSupport.stream(spliterator(), true).toArray();
         }
 
         @Override
         public <T> T[] toArray(T[] a) {
-            return (T[]) StreamSupport.stream(spliterator(), false).toArray();
+            return (T[]) StreamSupport.stream(spliterator(), true).toArray();
         }
 
         @Override
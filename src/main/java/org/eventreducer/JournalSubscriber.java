@@ -0,0 +1,36 @@
+package org.eventreducer;
+
+/**
+ * Receives events as they are journalled (see {@link Journal#subscribe(JournalSubscriber, long)}).
+ *
+ * All methods are invoked one at a time, from threads of the journal's
+ * {@link Journal#subscriptionExecutor() subscription executor}. They shouldn't block,
+ * since other subscriptions may be waiting for these threads.
+ */
+public interface JournalSubscriber {
+
+    /**
+     * Invoked once, before anything else. Nothing is delivered until events are
+     * {@link JournalSubscription#request(long) requested}.
+     *
+     * @param subscription subscription
+     */
+    void onSubscribe(JournalSubscription subscription);
+
+    /**
+     * Invoked for every durable journalled event, in journal order
+     *
+     * @param event event
+     * @param position position to resume from once this event is processed
+     */
+    void onNext(Event event, long position);
+
+    /**
+     * Invoked if the journal can't be read or {@link #onNext(Event, long)} failed.
+     * Nothing is delivered afterwards.
+     *
+     * @param throwable error
+     */
+    void onError(Throwable throwable);
+
+}
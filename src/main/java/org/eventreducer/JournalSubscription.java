@@ -0,0 +1,140 @@
+package org.eventreducer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers durable journalled events to a {@link JournalSubscriber}.
+ *
+ * Events are read straight from the journal, which serves as the subscription's buffer:
+ * no more events than {@link #request(long) requested} are read ahead, so a slow subscriber
+ * never holds up publishers or accumulates a backlog in memory, it merely lags behind
+ * the journal's {@link Journal#durablePosition()}.
+ *
+ * Subscriptions don't have threads of their own. Whenever there's new demand or new durable
+ * records, delivery runs on the journal's {@link Journal#subscriptionExecutor() subscription executor}
+ * until either runs out.
+ */
+@Slf4j
+public class JournalSubscription {
+
+    /**
+     * Executor shared by subscriptions of all journals unless configured otherwise
+     */
+    static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("journal-subscription-%d").setDaemon(true).build());
+
+    private final Journal journal;
+    private final JournalSubscriber subscriber;
+    private final Executor executor;
+    private final AtomicLong demand = new AtomicLong();
+    /**
+     * Number of signals not yet handled by delivery, which is scheduled when it becomes positive
+     */
+    private final AtomicInteger signals = new AtomicInteger();
+    private boolean subscribed;
+    private volatile long position;
+    private volatile boolean cancelled;
+
+    JournalSubscription(Journal journal, JournalSubscriber subscriber, long position) {
+        this.journal = journal;
+        this.subscriber = subscriber;
+        this.executor = journal.subscriptionExecutor();
+        this.position = position;
+    }
+
+    void start() {
+        signal();
+    }
+
+    /**
+     * Allows delivery of <code>n</code> more events
+     *
+     * @param n number of events, <code>Long.MAX_VALUE</code> for unbounded delivery
+     * @throws IllegalArgumentException if <code>n</code> isn't positive
+     */
+    public void request(long n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Number of requested events must be positive, got " + n);
+        }
+        demand.accumulateAndGet(n, (current, requested) -> current + requested < 0 ? Long.MAX_VALUE : current + requested);
+        signal();
+    }
+
+    /**
+     * Stops delivery. Events may still be delivered for a short while if the call
+     * is made from a thread other than the subscriber's.
+     */
+    public void cancel() {
+        cancelled = true;
+        journal.unsubscribe(this);
+    }
+
+    /**
+     * @return position right after the last record read
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Schedules delivery, invoked when there's new demand or new durable records.
+     * Delivery never runs concurrently with itself, signals received while it runs make it go on.
+     */
+    void signal() {
+        if (signals.getAndIncrement() == 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        int handled = signals.get();
+        do {
+            try {
+                deliver();
+            } catch (Throwable t) {
+                cancel();
+                log.error("Journal subscription failed at position " + position, t);
+                subscriber.onError(t);
+            }
+            handled = signals.addAndGet(-handled);
+        } while (handled != 0);
+    }
+
+    private void deliver() {
+        if (cancelled) {
+            return;
+        }
+        if (!subscribed) {
+            subscribed = true;
+            subscriber.onSubscribe(this);
+        }
+        long end = journal.durablePosition();
+        if (demand.get() == 0 || end <= position) {
+            return;
+        }
+        JournalIterator<Serializable> iterator = journal.iterator(position, end);
+        while (!cancelled && demand.get() > 0) {
+            if (!iterator.hasNext()) {
+                // records the iterator skipped are consumed, too
+                position = end;
+                break;
+            }
+            Serializable record = iterator.next();
+            if (record instanceof Event) {
+                if (demand.get() != Long.MAX_VALUE) {
+                    demand.decrementAndGet();
+                }
+                subscriber.onNext((Event) record, iterator.position());
+            }
+            position = iterator.position();
+        }
+    }
+
+}
@@ -0,0 +1,385 @@
+package org.eventreducer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * {@link UUIDIndex} stored in a memory-mapped file as an open-addressing hash table
+ * with linear probing, so it takes no heap and is usable as soon as it is opened.
+ *
+ * File layout:
+ *
+ * <pre>
+ *     int     magic
+ *     int     reserved
+ *     long    number of slots (a power of two)
+ *     long    number of used slots
+ *     long    position up to which all records are in the index, as of the last {@link #force(long)}
+ *     ...     padding up to 64 bytes
+ *     ...     slots of 32 bytes: long UUID msb, long UUID lsb, long position + 1 (0 marks an empty slot), long reserved
+ * </pre>
+ *
+ * Entries are added by one writer at a time, while lookups may run concurrently.
+ * Mappings are released as soon as a table is replaced or the index is closed,
+ * so lookups hold a read lock on the tables they use.
+ *
+ * Once half of the slots are used, entries are added to a table of twice the size
+ * in a separate file, and the entries of the previous table are migrated to it a few
+ * slots at a time as entries are added. Meanwhile, lookups fall back to the previous table.
+ * The index file is replaced by the new one on the first {@link #force(long)} after
+ * migration is done; until then, it keeps the position it had when resizing started,
+ * and files of tables that haven't replaced it are discarded on open.
+ */
+@Slf4j
+class MappedUUIDIndex implements UUIDIndex, Closeable {
+
+    static final long INITIAL_SLOTS = 1 << 16;
+
+    private static final int MAGIC = 0x55554944;
+    private static final int HEADER = 64;
+    private static final int SLOTS = 8;
+    private static final int SIZE = 16;
+    private static final int POSITION = 24;
+    private static final int SLOT = 32;
+    /**
+     * Slots are mapped in regions of 1GB, a single mapping can't exceed 2GB
+     */
+    private static final int REGION_SLOTS = (1 << 30) / SLOT;
+    /**
+     * Slots of the previous table migrated per entry added while resizing. With twice as many
+     * slots in the new table, migration is done well before it is half full.
+     */
+    private static final int MIGRATION_STEP = 4;
+
+    private final File file;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Table entries are added to
+     */
+    private volatile Table table;
+    /**
+     * Table being migrated to {@link #table}, null if there's none
+     */
+    private volatile Table previous;
+    /**
+     * Number of slots of {@link #previous} migrated so far
+     */
+    private long migrated;
+
+    MappedUUIDIndex(File file) throws IOException {
+        this.file = file;
+        File[] resized = file.getAbsoluteFile().getParentFile().listFiles((directory, name) -> name.startsWith(file.getName() + ".resize"));
+        for (File resizedFile : resized == null ? new File[0] : resized) {
+            // the index file wasn't replaced, so it holds everything up to its position
+            log.warn("Discarding incomplete resize of index {}", file);
+            Files.delete(resizedFile.toPath());
+        }
+        if (file.exists()) {
+            table = new Table(file, -1);
+            if (table.header.getInt(0) != MAGIC || file.length() != HEADER + table.slots * SLOT) {
+                log.warn("Invalid index {}, rebuilding it", file);
+                table.unmap();
+                table = null;
+            }
+        }
+        if (table == null) {
+            table = new Table(file, INITIAL_SLOTS);
+        }
+    }
+
+    /**
+     * Hash table in a file
+     */
+    private static class Table {
+        /**
+         * File the table is stored in, changes once a resized table replaces the index file
+         */
+        private File file;
+        private final MappedByteBuffer header;
+        private final MappedByteBuffer[] regions;
+        private final long slots;
+
+        /**
+         * @param slots number of slots of a new table, or -1 to map an existing one
+         */
+        Table(File file, long slots) throws IOException {
+            this.file = file;
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                FileChannel channel = randomAccessFile.getChannel();
+                if (slots > 0) {
+                    randomAccessFile.setLength(0);
+                    randomAccessFile.setLength(HEADER + slots * SLOT);
+                }
+                header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+                if (slots > 0) {
+                    header.putInt(0, MAGIC);
+                    header.putLong(SLOTS, slots);
+                }
+                this.slots = header.getLong(SLOTS);
+                if (Long.bitCount(this.slots) != 1 || HEADER + this.slots * SLOT > channel.size()) {
+                    header.putInt(0, 0);
+                    regions = new MappedByteBuffer[0];
+                    return;
+                }
+                regions = new MappedByteBuffer[(int) ((this.slots + REGION_SLOTS - 1) / REGION_SLOTS)];
+                for (int i = 0; i < regions.length; i++) {
+                    long first = (long) i * REGION_SLOTS;
+                    regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + first * SLOT,
+                            Math.min(REGION_SLOTS, this.slots - first) * SLOT);
+                }
+            }
+        }
+
+        long get(long slot, int field) {
+            return regions[(int) (slot / REGION_SLOTS)].getLong((int) (slot % REGION_SLOTS) * SLOT + field);
+        }
+
+        void set(long slot, int field, long value) {
+            regions[(int) (slot / REGION_SLOTS)].putLong((int) (slot % REGION_SLOTS) * SLOT + field, value);
+        }
+
+        /**
+         * Returns the slot holding the UUID, or the empty slot it belongs to
+         */
+        long find(long msb, long lsb) {
+            long mask = slots - 1;
+            long slot = BloomFilter.mix(msb * 0x9E3779B97F4A7C15L + lsb) & mask;
+            while (get(slot, 16) != 0 && (get(slot, 0) != msb || get(slot, 8) != lsb)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        void force() {
+            for (MappedByteBuffer region : regions) {
+                region.force();
+            }
+            header.force();
+        }
+
+        void unmap() {
+            MappedUUIDIndex.unmap(header);
+            for (MappedByteBuffer region : regions) {
+                MappedUUIDIndex.unmap(region);
+            }
+        }
+    }
+
+    /**
+     * Releases a mapping or a direct buffer without waiting for the buffer to be garbage
+     * collected. The buffer must not be accessed afterwards.
+     */
+    static void unmap(ByteBuffer buffer) {
+        try {
+            try {
+                // Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object clean = cleaner.invoke(buffer);
+                if (clean != null) {
+                    clean.getClass().getMethod("clean").invoke(clean);
+                }
+            }
+        } catch (Exception e) {
+            log.debug("Can't unmap buffer, leaving it to the garbage collector", e);
+        }
+    }
+
+    @Override
+    public long get(UUID uuid) {
+        lock.readLock().lock();
+        try {
+            Table table = this.table;
+            if (table == null) {
+                throw new IllegalStateException("Index " + file + " is closed");
+            }
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            long position = table.get(table.find(msb, lsb), 16);
+            Table previous = this.previous;
+            if (position == 0 && previous != null) {
+                position = previous.get(previous.find(msb, lsb), 16);
+            }
+            return position - 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public synchronized void put(UUID uuid, long position) {
+        Table table = this.table;
+        long slot = table.find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        boolean added = table.get(slot, 16) == 0;
+        table.set(slot, 0, uuid.getMostSignificantBits());
+        table.set(slot, 8, uuid.getLeastSignificantBits());
+        table.set(slot, 16, position + 1);
+        if (added) {
+            table.header.putLong(SIZE, table.header.getLong(SIZE) + 1);
+        }
+        if (previous != null) {
+            migrate(MIGRATION_STEP);
+        } else if (table.header.getLong(SIZE) * 2 > table.slots) {
+            resize();
+        }
+    }
+
+    /**
+     * Starts adding entries to a table with twice the number of slots, in a separate file
+     */
+    private void resize() {
+        try {
+            Table resized = new Table(new File(file.getPath() + ".resize." + table.slots * 2), table.slots * 2);
+            resized.header.putLong(POSITION, table.header.getLong(POSITION));
+            lock.writeLock().lock();
+            try {
+                previous = table;
+                table = resized;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            migrated = 0;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't resize index " + file, e);
+        }
+    }
+
+    /**
+     * Migrates entries of up to <code>count</code> slots of the previous table, and
+     * releases it once all of them are migrated
+     */
+    private void migrate(int count) {
+        Table previous = this.previous;
+        long end = Math.min(previous.slots, migrated + count);
+        for (; migrated < end; migrated++) {
+            long position = previous.get(migrated, 16);
+            if (position != 0) {
+                long msb = previous.get(migrated, 0);
+                long lsb = previous.get(migrated, 8);
+                long target = table.find(msb, lsb);
+                // entries added since resizing started are newer
+                if (table.get(target, 16) == 0) {
+                    table.set(target, 0, msb);
+                    table.set(target, 8, lsb);
+                    table.set(target, 16, position);
+                    table.header.putLong(SIZE, table.header.getLong(SIZE) + 1);
+                }
+            }
+        }
+        if (migrated == previous.slots) {
+            lock.writeLock().lock();
+            try {
+                this.previous = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            previous.unmap();
+            if (previous.file != file && !previous.file.delete()) {
+                log.warn("Can't delete {}", previous.file);
+            }
+        }
+    }
+
+    @Override
+    public long position() {
+        return table.header.getLong(POSITION);
+    }
+
+    /**
+     * Forces the index to the storage device, recording that all records up to
+     * <code>position</code> are in it
+     */
+    synchronized void force(long position) {
+        if (previous != null) {
+            // the index file keeps its position until it is replaced
+            return;
+        }
+        table.force();
+        table.header.putLong(POSITION, position);
+        table.header.force();
+        if (table.file != file) {
+            try {
+                Files.move(table.file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                FileJournal.syncDirectory(file.getAbsoluteFile().getParentFile());
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't replace index " + file, e);
+            }
+            table.file = file;
+        }
+    }
+
+    @Override
+    public void forEach(Consumer<UUID> consumer) {
+        lock.readLock().lock();
+        try {
+            Table table = this.table;
+            for (long slot = 0; slot < table.slots; slot++) {
+                if (table.get(slot, 16) != 0) {
+                    consumer.accept(new UUID(table.get(slot, 0), table.get(slot, 8)));
+                }
+            }
+            Table previous = this.previous;
+            if (previous != null) {
+                for (long slot = 0; slot < previous.slots; slot++) {
+                    if (previous.get(slot, 16) != 0) {
+                        long msb = previous.get(slot, 0);
+                        long lsb = previous.get(slot, 8);
+                        if (table.get(table.find(msb, lsb), 16) == 0) {
+                            consumer.accept(new UUID(msb, lsb));
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Releases the mapping of the index. Any further use of it fails.
+     */
+    @Override
+    public synchronized void close() {
+        Table table = this.table;
+        if (table == null) {
+            return;
+        }
+        Table previous = this.previous;
+        lock.writeLock().lock();
+        try {
+            this.table = null;
+            this.previous = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        table.unmap();
+        if (previous != null) {
+            previous.unmap();
+            if (previous.file != file && !previous.file.delete()) {
+                log.warn("Can't delete {}", previous.file);
+            }
+        }
+    }
+
+}
@@ -1,8 +1,10 @@
 package org.eventreducer;
 
+import com.google.common.collect.TreeMultiset;
 import com.googlecode.cqengine.ConcurrentIndexedCollection;
 import com.googlecode.cqengine.IndexedCollection;
 import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.AttributeIndex;
 import com.googlecode.cqengine.index.Index;
 import com.googlecode.cqengine.index.hash.HashIndex;
 import com.googlecode.cqengine.index.navigable.NavigableIndex;
@@ -10,27 +12,65 @@ import com.googlecode.cqengine.index.radix.RadixTreeIndex;
 import com.googlecode.cqengine.index.radixinverted.InvertedRadixTreeIndex;
 import com.googlecode.cqengine.index.radixreversed.ReversedRadixTreeIndex;
 import com.googlecode.cqengine.index.suffix.SuffixTreeIndex;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.stored.StoredResultSet;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
 import org.javatuples.Triplet;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 import static org.eventreducer.IndexFactory.IndexFeature.*;
 
+@Slf4j
 public class MemoryIndexFactory extends IndexFactory {
 
     protected Map<String, IndexedCollection> indexedCollections = new ConcurrentHashMap<>();
 
+    /**
+     * Index snapshot file. If it exists on startup, hash, unique and navigable indices are restored
+     * from it and from the part of the journal it doesn't cover, instead of from the whole journal.
+     * Snapshots are written by {@link #snapshot()}.
+     *
+     * Snapshots hold the UUIDs of indexed records, restoring them looks records up in the journal
+     * by UUID, each one once. Other indices are populated from the journal as usual.
+     */
+    @Getter @Accessors(fluent = true)
+    private File snapshotFile;
+    private volatile boolean restoring;
+    private final Map<String, SnapshotIndex> snapshotIndices = new ConcurrentHashMap<>();
+    /**
+     * Journal positions commands were journalled after, for commands that aren't indexed yet
+     */
+    private final TreeMultiset<Long> unindexed = TreeMultiset.create();
+
+    public MemoryIndexFactory snapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+        this.restoring = snapshotFile != null && snapshotFile.exists();
+        return this;
+    }
+
     @Override
     protected List<Triplet<String, IndexFeature[], Function<Attribute, Index>>> getIndexMatrix() {
+        Function<Attribute, Index> hashIndex = snapshotFile == null ? HashIndex::onAttribute :
+                attribute -> new SnapshotHashIndex<>(this, "Hash", attribute);
+        Function<Attribute, Index> uniqueIndex = snapshotFile == null ? HashIndex::onAttribute :
+                attribute -> new SnapshotHashIndex<>(this, "Unique", attribute);
+        Function<Attribute, Index> navigableIndex = snapshotFile == null ? NavigableIndex::onAttribute :
+                attribute -> new SnapshotNavigableIndex(this, attribute);
         return Arrays.asList(
-                Triplet.with("Hash", new IndexFeature[]{EQ, IN, QZ}, (Function<Attribute, Index>) HashIndex::onAttribute),
-                Triplet.with("Unique", new IndexFeature[]{UNIQUE, EQ, IN}, (Function<Attribute, Index>) HashIndex::onAttribute),
+                Triplet.with("Hash", new IndexFeature[]{EQ, IN, QZ}, hashIndex),
+                Triplet.with("Unique", new IndexFeature[]{UNIQUE, EQ, IN}, uniqueIndex),
                 Triplet.with("Compound", new IndexFeature[]{COMPOUND, EQ, IN, QZ}, (Function<Attribute, Index>) HashIndex::onAttribute),
-                Triplet.with("Navigable", new IndexFeature[]{EQ, IN, QZ, LT, GT, BT}, (Function<Attribute, Index>) NavigableIndex::onAttribute),
+                Triplet.with("Navigable", new IndexFeature[]{EQ, IN, QZ, LT, GT, BT}, navigableIndex),
                 Triplet.with("RadixTree", new IndexFeature[]{EQ, IN, SW}, (Function<Attribute, Index>) RadixTreeIndex::onAttribute),
                 Triplet.with("ReversedRadixTree", new IndexFeature[]{EQ, IN, EW}, (Function<Attribute, Index>) ReversedRadixTreeIndex::onAttribute),
                 Triplet.with("InvertedRadixTree", new IndexFeature[]{EQ, IN, CI}, (Function<Attribute, Index>) InvertedRadixTreeIndex::onAttribute),
@@ -50,4 +90,313 @@ public class MemoryIndexFactory extends IndexFactory {
         }
     }
 
+    @Override
+    public void indicesConfigured() {
+        if (!restoring) {
+            return;
+        }
+        restoring = false;
+        try {
+            restore();
+        } catch (Exception e) {
+            log.error("Error while restoring indices from snapshot " + snapshotFile + ", populating them from the journal", e);
+            snapshotIndices.values().forEach(SnapshotIndex::populate);
+        }
+    }
+
+    /**
+     * With a snapshot file, keeps track of the journal position commands are journalled after
+     * until they are indexed, so that snapshots know which records they cover. Snapshots can't be
+     * taken of indices of journals that don't support positions.
+     */
+    @Override
+    public long journalling() {
+        if (snapshotFile == null) {
+            return -1;
+        }
+        synchronized (unindexed) {
+            long position;
+            try {
+                position = getJournal().position();
+            } catch (UnsupportedOperationException e) {
+                return -1;
+            }
+            unindexed.add(position);
+            return position;
+        }
+    }
+
+    @Override
+    public void indexed(long token) {
+        if (token >= 0) {
+            synchronized (unindexed) {
+                unindexed.remove(token);
+            }
+        }
+    }
+
+    /**
+     * @return journal position before which all journalled commands and events are indexed
+     */
+    private long indexedPosition() {
+        synchronized (unindexed) {
+            long position = getJournal().position();
+            return unindexed.isEmpty() ? position : Math.min(position, unindexed.firstEntry().getElement());
+        }
+    }
+
+    /**
+     * Writes a snapshot of hash, unique and navigable indices to {@link #snapshotFile()}. For every
+     * index, it holds the UUIDs of the records indexed under each attribute value, and the journal
+     * position before which all records are indexed. Commands can be published meanwhile, records
+     * indexed after that position are indexed again on restore.
+     *
+     * @throws IOException if the snapshot can't be written
+     * @throws UnsupportedOperationException if the journal doesn't support positions
+     */
+    public synchronized void snapshot() throws IOException {
+        long t0 = System.nanoTime();
+        long position = indexedPosition();
+        long written = 0;
+        File temporaryFile = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temporaryFile)) {
+            ObjectOutputStream output = new ObjectOutputStream(new BufferedOutputStream(stream));
+            output.writeLong(position);
+            for (Map.Entry<String, SnapshotIndex> entry : snapshotIndices.entrySet()) {
+                Map<Object, StoredResultSet> indexMap = entry.getValue().indexMap();
+                if (!indexMap.keySet().stream().allMatch(value -> value instanceof java.io.Serializable)) {
+                    log.warn("Index {} has attribute values that can't be serialized, it won't be snapshotted", entry.getKey());
+                    continue;
+                }
+                output.writeBoolean(true);
+                output.writeUTF(entry.getKey());
+                for (Map.Entry<Object, StoredResultSet> values : indexMap.entrySet()) {
+                    List<UUID> uuids = new ArrayList<>();
+                    for (Object o : values.getValue()) {
+                        uuids.add(((Identifiable) o).uuid());
+                    }
+                    output.writeBoolean(true);
+                    output.writeObject(values.getKey());
+                    output.writeInt(uuids.size());
+                    for (UUID uuid : uuids) {
+                        output.writeLong(uuid.getMostSignificantBits());
+                        output.writeLong(uuid.getLeastSignificantBits());
+                    }
+                }
+                output.writeBoolean(false);
+                output.reset();
+                written++;
+            }
+            output.writeBoolean(false);
+            output.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileJournal.syncDirectory(snapshotFile.getAbsoluteFile().getParentFile());
+        long t1 = System.nanoTime();
+        log.info("Wrote snapshot of {} index(es) at journal position {}, elapsed time {} seconds.",
+                written, position, TimeUnit.SECONDS.convert(t1-t0, TimeUnit.NANOSECONDS));
+    }
+
+    private void restore() throws IOException, ClassNotFoundException {
+        long t0 = System.nanoTime();
+        long position;
+        Map<Class<?>, List<SnapshotIndex>> restored = new HashMap<>();
+        // records by UUID, so that each one is read once
+        Map<UUID, Object> records = new HashMap<>();
+        try (ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            position = input.readLong();
+            if (position > getJournal().position()) {
+                throw new IOException("Snapshot covers journal position " + position + ", beyond the end of the journal");
+            }
+            while (input.readBoolean()) {
+                SnapshotIndex index = snapshotIndices.get(input.readUTF());
+                while (input.readBoolean()) {
+                    Object value = input.readObject();
+                    int count = input.readInt();
+                    StoredResultSet valueSet = index == null ? null : index.createValueSet();
+                    for (int i = 0; i < count; i++) {
+                        UUID uuid = new UUID(input.readLong(), input.readLong());
+                        if (valueSet != null) {
+                            valueSet.add(records.computeIfAbsent(uuid, key -> record(index.collectionClass(), key)));
+                        }
+                    }
+                    if (index != null) {
+                        index.indexMap().put(value, valueSet);
+                    }
+                }
+                if (index != null) {
+                    restored.computeIfAbsent(index.collectionClass(), klass -> new ArrayList<>()).add(index);
+                }
+            }
+        }
+        long t1 = System.nanoTime();
+        log.info("Restored {} index(es) of {} record(s) from snapshot, elapsed time {} seconds.",
+                restored.values().stream().mapToInt(List::size).sum(), records.size(), TimeUnit.SECONDS.convert(t1-t0, TimeUnit.NANOSECONDS));
+        replay(position, restored, records);
+        for (Map.Entry<String, SnapshotIndex> entry : snapshotIndices.entrySet()) {
+            SnapshotIndex index = entry.getValue();
+            if (!restored.getOrDefault(index.collectionClass(), Collections.emptyList()).contains(index)) {
+                log.info("Index {} is not in the snapshot, populating it from the journal", entry.getKey());
+                index.populate();
+            }
+        }
+    }
+
+    /**
+     * Adds everything journalled since <code>position</code> to restored indices
+     *
+     * @param indices restored indices by collection class
+     * @param records restored records by UUID, records indexed after the position may be among them
+     */
+    private void replay(long position, Map<Class<?>, List<SnapshotIndex>> indices, Map<UUID, Object> records) {
+        long t0 = System.nanoTime();
+        long replayed = 0;
+        Iterator<Serializable> iterator = getJournal().iterator(position, getJournal().position());
+        while (iterator.hasNext()) {
+            Serializable record = iterator.next();
+            List<SnapshotIndex> collectionIndices = indices.get(record.getClass());
+            if (collectionIndices != null) {
+                Object o = records.getOrDefault(((Identifiable) record).uuid(), record);
+                collectionIndices.forEach(index -> index.add(o));
+                replayed++;
+            }
+        }
+        long t1 = System.nanoTime();
+        log.info("Replayed {} journalled record(s) after position {}, elapsed time {} seconds.",
+                replayed, position, TimeUnit.SECONDS.convert(t1-t0, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Looks up a record of a collection in the journal
+     */
+    private Object record(Class<?> klass, UUID uuid) {
+        Optional<? extends Identifiable> o = Event.class.isAssignableFrom(klass) ?
+                getJournal().findEvent(uuid) : getJournal().findCommand(uuid);
+        return o.orElseThrow(() -> new IllegalStateException("Indexed record " + uuid + " is not in the journal"));
+    }
+
+    private void register(SnapshotIndex index, String kind) {
+        snapshotIndices.put(index.collectionClass().getName() + " " + kind + " " + index.getAttribute().getAttributeName(), index);
+    }
+
+    /**
+     * An index that can be written to and restored from a snapshot
+     */
+    private interface SnapshotIndex<A, O> extends AttributeIndex<A, O> {
+        Class<O> collectionClass();
+        Map<A, StoredResultSet<O>> indexMap();
+        StoredResultSet<O> createValueSet();
+
+        /**
+         * Adds a record the way the collection would
+         */
+        void add(O o);
+
+        /**
+         * Populates the index from the journal, discarding anything restored
+         */
+        void populate();
+    }
+
+    private static class SnapshotHashIndex<A, O extends Identifiable> extends HashIndex<A, O> implements SnapshotIndex<A, O> {
+        private final MemoryIndexFactory factory;
+        private final String kind;
+        private Class<O> collectionClass;
+        private Set<O> collection;
+        private QueryOptions queryOptions;
+
+        SnapshotHashIndex(MemoryIndexFactory factory, String kind, Attribute<O, A> attribute) {
+            super(ConcurrentHashMap::new, new DefaultValueSetFactory<>(), attribute);
+            this.factory = factory;
+            this.kind = kind;
+        }
+
+        @Override
+        public void init(Set<O> collection, QueryOptions queryOptions) {
+            this.collection = collection;
+            this.queryOptions = queryOptions;
+            collectionClass = ((JournalPersistence.JournalSet<O>) collection).klass();
+            factory.register(this, kind);
+            if (!factory.restoring) {
+                super.init(collection, queryOptions);
+            }
+        }
+
+        @Override
+        public Class<O> collectionClass() {
+            return collectionClass;
+        }
+
+        @Override
+        public Map<A, StoredResultSet<O>> indexMap() {
+            return indexMap;
+        }
+
+        @Override
+        public StoredResultSet<O> createValueSet() {
+            return valueSetFactory.create();
+        }
+
+        @Override
+        public void add(O o) {
+            addAll(Collections.singleton(o), queryOptions);
+        }
+
+        @Override
+        public void populate() {
+            clear(queryOptions);
+            super.init(collection, queryOptions);
+        }
+    }
+
+    private static class SnapshotNavigableIndex<A extends Comparable<A>, O extends Identifiable> extends NavigableIndex<A, O> implements SnapshotIndex<A, O> {
+        private final MemoryIndexFactory factory;
+        private Class<O> collectionClass;
+        private Set<O> collection;
+        private QueryOptions queryOptions;
+
+        SnapshotNavigableIndex(MemoryIndexFactory factory, Attribute<O, A> attribute) {
+            super(ConcurrentSkipListMap::new, new DefaultValueSetFactory<>(), attribute);
+            this.factory = factory;
+        }
+
+        @Override
+        public void init(Set<O> collection, QueryOptions queryOptions) {
+            this.collection = collection;
+            this.queryOptions = queryOptions;
+            collectionClass = ((JournalPersistence.JournalSet<O>) collection).klass();
+            factory.register(this, "Navigable");
+            if (!factory.restoring) {
+                super.init(collection, queryOptions);
+            }
+        }
+
+        @Override
+        public Class<O> collectionClass() {
+            return collectionClass;
+        }
+
+        @Override
+        public Map<A, StoredResultSet<O>> indexMap() {
+            return indexMap;
+        }
+
+        @Override
+        public StoredResultSet<O> createValueSet() {
+            return valueSetFactory.create();
+        }
+
+        @Override
+        public void add(O o) {
+            addAll(Collections.singleton(o), queryOptions);
+        }
+
+        @Override
+        public void populate() {
+            clear(queryOptions);
+            super.init(collection, queryOptions);
+        }
+    }
+
 }
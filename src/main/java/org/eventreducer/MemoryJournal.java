@@ -1,15 +1,44 @@
 package org.eventreducer;
 
+import org.apache.commons.net.ntp.TimeStamp;
+import org.eventreducer.hlc.HybridTimestamp;
 import org.eventreducer.hlc.PhysicalTimeProvider;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * In-memory journal. It is safe to journal from multiple publishers concurrently,
+ * and iteration is weakly consistent: iterators never fail and reflect
+ * some of the records journalled after their creation.
+ */
 public class MemoryJournal extends Journal {
 
-    protected Map<UUID, Event> storage = new HashMap<>();
-    protected Map<UUID, Command> commands = new HashMap<>();
+    protected Map<UUID, Event> storage = new ConcurrentHashMap<>();
+    protected Map<UUID, Command> commands = new ConcurrentHashMap<>();
+    /**
+     * Events of every command, keyed by command's UUID
+     */
+    protected Map<UUID, List<Event>> commandEvents = new ConcurrentHashMap<>();
+    protected ClassCounters counters = new ClassCounters();
+    /**
+     * Commands and events by timestamp
+     */
+    protected ConcurrentNavigableMap<TimeStamp, Serializable> timeline = new ConcurrentSkipListMap<>(HybridTimestamp::compare);
+    /**
+     * Every journalled command followed by its events, in journal order.
+     * Positions of this journal are indices into it.
+     */
+    protected final List<Serializable> records = new ArrayList<>();
+    /**
+     * Commands and events by concrete class, in journal order, for sized spliterators
+     */
+    protected final Map<Class<?>, List<Serializable>> partitions = new ConcurrentHashMap<>();
 
     public MemoryJournal(PhysicalTimeProvider physicalTimeProvider) {
         super(physicalTimeProvider);
@@ -17,30 +46,53 @@ public class MemoryJournal extends Journal {
 
     @Override
     protected long journal(Command command, Stream<Event> events) {
+        List<Event> journalled = events.collect(Collectors.toList());
         commands.put(command.uuid(), command);
-        return events.map(event -> storage.put(event.uuid(), event)).count();
+        timeline.put(command.timestamp(), command);
+        counters.increment(command.getClass());
+        journalled.forEach(event -> {
+            storage.put(event.uuid(), event);
+            timeline.put(event.timestamp(), event);
+            counters.increment(event.getClass());
+        });
+        commandEvents.put(command.uuid(), journalled);
+        synchronized (records) {
+            records.add(command);
+            records.addAll(journalled);
+        }
+        partition(command);
+        journalled.forEach(this::partition);
+        signalSubscriptions();
+        return journalled.size();
+    }
+
+    private void partition(Serializable o) {
+        partitions.computeIfAbsent(o.getClass(), k -> Collections.synchronizedList(new ArrayList<>())).add(o);
     }
 
     @Override
     public long size(Class<? extends Serializable> klass) {
-        return storage.values().stream().filter(e -> klass.isAssignableFrom(e.getClass())).collect(Collectors.toList()).size() +
-               commands.values().stream().filter(e -> klass.isAssignableFrom(e.getClass())).collect(Collectors.toList()).size();
+        return counters.count(klass);
     }
 
     @Override
     public Optional<Event> findEvent(UUID uuid) {
-        if (storage.containsKey(uuid)) {
-            return Optional.of(storage.get(uuid));
-        }
-        return Optional.empty();
+        return Optional.ofNullable(storage.get(uuid));
     }
 
     @Override
     public Optional<Command> findCommand(UUID uuid) {
-        if (commands.containsKey(uuid)) {
-            return Optional.of(commands.get(uuid));
-        }
-        return Optional.empty();
+        return Optional.ofNullable(commands.get(uuid));
+    }
+
+    @Override
+    public boolean containsEvent(UUID uuid) {
+        return storage.containsKey(uuid);
+    }
+
+    @Override
+    public boolean containsCommand(UUID uuid) {
+        return commands.containsKey(uuid);
     }
 
     @Override
@@ -53,10 +105,164 @@ public class MemoryJournal extends Journal {
         return commands.values().stream().filter(v -> klass.isAssignableFrom(v.getClass())).iterator();
     }
 
+    /**
+     * Splits by index across partitions of matching classes. Sizes are exact,
+     * as of the spliterator's creation.
+     */
+    @Override
+    public Spliterator<Event> eventSpliterator(Class<? extends Event> klass) {
+        return new PartitionSpliterator<>(klass);
+    }
+
+    /**
+     * @see #eventSpliterator(Class)
+     */
+    @Override
+    public Spliterator<Command> commandSpliterator(Class<? extends Command> klass) {
+        return new PartitionSpliterator<>(klass);
+    }
+
+    /**
+     * Iterates over partitions of classes assignable to a class as over a single list,
+     * copying records out in batches to keep partitions' locks uncontended
+     */
+    private class PartitionSpliterator<T extends Serializable> implements Spliterator<T> {
+        private static final int BATCH = 1024;
+
+        private final List<List<Serializable>> lists = new ArrayList<>();
+        /**
+         * Index of the first record of every partition, followed by the total size
+         */
+        private final long[] offsets;
+        private long index;
+        private final long end;
+        private Object[] batch = new Object[0];
+        private int batchIndex;
+
+        PartitionSpliterator(Class<?> klass) {
+            List<Long> offsets = new ArrayList<>();
+            long size = 0;
+            for (Map.Entry<Class<?>, List<Serializable>> entry : partitions.entrySet()) {
+                if (klass.isAssignableFrom(entry.getKey())) {
+                    lists.add(entry.getValue());
+                    offsets.add(size);
+                    size += entry.getValue().size();
+                }
+            }
+            offsets.add(size);
+            this.offsets = offsets.stream().mapToLong(Long::longValue).toArray();
+            this.end = size;
+        }
+
+        private PartitionSpliterator(PartitionSpliterator<T> spliterator, long index, long end) {
+            this.lists.addAll(spliterator.lists);
+            this.offsets = spliterator.offsets;
+            this.index = index;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (batchIndex == batch.length) {
+                if (index == end) {
+                    return false;
+                }
+                fetch();
+            }
+            action.accept((T) batch[batchIndex++]);
+            return true;
+        }
+
+        /**
+         * Copies the next batch of records, all from the same partition
+         */
+        private void fetch() {
+            int partition = Arrays.binarySearch(offsets, index);
+            if (partition < 0) {
+                partition = -partition - 2;
+            }
+            // skip empty partitions
+            while (offsets[partition + 1] == index) {
+                partition++;
+            }
+            long count = Math.min(BATCH, Math.min(offsets[partition + 1], end) - index);
+            int from = (int) (index - offsets[partition]);
+            batch = lists.get(partition).subList(from, from + (int) count).toArray();
+            batchIndex = 0;
+            index += count;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (end - index < 2 * BATCH) {
+                return null;
+            }
+            long middle = (index + end) >>> 1;
+            Spliterator<T> prefix = new PartitionSpliterator<>(this, index, middle);
+            index = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - index + batch.length - batchIndex;
+        }
+
+        @Override
+        public int characteristics() {
+            return SIZED | SUBSIZED | NONNULL;
+        }
+    }
+
     @Override
     public Stream<Event> events(Command command) {
-        return storage.values().stream().filter(e -> e.command().uuid().equals(command.uuid()));
+        return commandEvents.getOrDefault(command.uuid(), Collections.emptyList()).stream();
+    }
+
+    @Override
+    public Iterator<Event> eventsBetween(TimeStamp from, TimeStamp to, Class<? extends Event> klass) {
+        return timeline.subMap(from, true, to, false).values().stream().
+                filter(v -> v instanceof Event && klass.isAssignableFrom(v.getClass())).map(v -> (Event) v).iterator();
     }
 
+    @Override
+    public Iterator<Command> commandsBetween(TimeStamp from, TimeStamp to, Class<? extends Command> klass) {
+        return timeline.subMap(from, true, to, false).values().stream().
+                filter(v -> v instanceof Command && klass.isAssignableFrom(v.getClass())).map(v -> (Command) v).iterator();
+    }
+
+    @Override
+    public long position() {
+        synchronized (records) {
+            return records.size();
+        }
+    }
+
+    @Override
+    public JournalIterator<Serializable> iterator(long from, long to) {
+        return new JournalIterator<Serializable>() {
+            private long position = from;
+
+            @Override
+            public boolean hasNext() {
+                return position < to;
+            }
+
+            @Override
+            public Serializable next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                synchronized (records) {
+                    return records.get((int) position++);
+                }
+            }
+
+            @Override
+            public long position() {
+                return position;
+            }
+        };
+    }
 
 }
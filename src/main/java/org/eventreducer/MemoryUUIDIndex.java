@@ -0,0 +1,35 @@
+package org.eventreducer;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * On-heap {@link UUIDIndex}
+ */
+class MemoryUUIDIndex implements UUIDIndex {
+
+    private final Map<UUID, Long> positions = new ConcurrentHashMap<>();
+
+    @Override
+    public long get(UUID uuid) {
+        return positions.getOrDefault(uuid, -1L);
+    }
+
+    @Override
+    public void put(UUID uuid, long position) {
+        positions.put(uuid, position);
+    }
+
+    @Override
+    public long position() {
+        return 0;
+    }
+
+    @Override
+    public void forEach(Consumer<UUID> consumer) {
+        positions.keySet().forEach(consumer);
+    }
+
+}
@@ -10,6 +10,7 @@ import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -24,10 +25,14 @@ public class MultiplePublisherService<T, C extends Command<T>> extends AbstractS
     private ServiceManager serviceManager;
 
     public MultiplePublisherService(C command) {
+        this(command, PublisherConfiguration.of(command.getClass()));
+    }
+
+    public MultiplePublisherService(C command, PublisherConfiguration configuration) {
         commandClass = command.getClass();
         publishers = new LinkedList<>();
         for (int i = 0; i < ForkJoinPool.getCommonPoolParallelism(); i++) {
-            publishers.add(new SinglePublisherService<>(command));
+            publishers.add(new SinglePublisherService<>(command, configuration));
         }
     }
 
@@ -48,10 +53,37 @@ public class MultiplePublisherService<T, C extends Command<T>> extends AbstractS
 
     @Override
     public void publish(C command, BiConsumer<Optional<T>, Long> completionHandler, Consumer<Throwable> exceptionHandler) {
+        publishers.get(bucket(command)).publish(command, completionHandler, exceptionHandler);
+    }
+
+    @Override
+    public boolean tryPublish(C command, BiConsumer<Optional<T>, Long> completionHandler, Consumer<Throwable> exceptionHandler) {
+        return publishers.get(bucket(command)).tryPublish(command, completionHandler, exceptionHandler);
+    }
+
+    /**
+     * Commands are distributed by their UUIDs, so any command can be published
+     * without blocking only as long as every instance has capacity left
+     *
+     * @return The least remaining capacity of all instances
+     */
+    @Override
+    public long remainingCapacity() {
+        return publishers.stream().mapToLong(Publisher::remainingCapacity).min().getAsLong();
+    }
+
+    /**
+     * Splits the batch by instance, so that every instance claims its ring buffer slots at once
+     */
+    @Override
+    public CompletableFuture<List<CommandPublished<T>>> publishAll(Collection<C> commands) {
+        return PublishedBatch.partitioned(commands, this::bucket, publishers::get);
+    }
+
+    private int bucket(C command) {
         UUID uuid = command.uuid();
         HashCode hashCode = HashCode.fromBytes(Bytes.concat(Longs.toByteArray(uuid.getMostSignificantBits()), Longs.toByteArray(uuid.getLeastSignificantBits())));
-        int bucket = Hashing.consistentHash(hashCode, publishers.size());
-        publishers.get(bucket).publish(command, completionHandler, exceptionHandler);
+        return Hashing.consistentHash(hashCode, publishers.size());
     }
 
     @Override
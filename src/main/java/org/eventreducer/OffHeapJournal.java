@@ -0,0 +1,37 @@
+package org.eventreducer;
+
+import org.eventreducer.hlc.PhysicalTimeProvider;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory journal that keeps serialized records in direct (off-heap) buffer arenas
+ * instead of holding live commands and events on the heap. Records are deserialized
+ * only when they are looked up or iterated over. Records are looked up by UUID through
+ * an off-heap hash table, too (see {@link OffHeapUUIDIndex}).
+ *
+ * It is a drop-in replacement for {@link MemoryJournal}, except that every journalled
+ * command and event has to have a generated {@link Serializer}.
+ */
+public class OffHeapJournal extends SegmentedJournal {
+
+    public static final int DEFAULT_ARENA_SIZE = 16 * 1024 * 1024;
+
+    public OffHeapJournal(PhysicalTimeProvider physicalTimeProvider) {
+        this(physicalTimeProvider, DEFAULT_ARENA_SIZE);
+    }
+
+    /**
+     * @param physicalTimeProvider physical time provider
+     * @param arenaSize size of every direct buffer allocated, in bytes. A single record can't be larger than that.
+     */
+    public OffHeapJournal(PhysicalTimeProvider physicalTimeProvider, int arenaSize) {
+        super(physicalTimeProvider, arenaSize);
+        uuidIndex = new OffHeapUUIDIndex();
+    }
+
+    @Override
+    protected ByteBuffer allocateSegment(int index) {
+        return ByteBuffer.allocateDirect(segmentSize());
+    }
+}
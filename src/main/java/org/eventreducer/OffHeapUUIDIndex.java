@@ -0,0 +1,211 @@
+package org.eventreducer;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * {@link UUIDIndex} kept in direct (off-heap) buffers as an open-addressing hash table
+ * with linear probing, laid out like the slots of {@link MappedUUIDIndex}, so that
+ * indexing records takes no heap.
+ *
+ * Slots are 24 bytes: long UUID msb, long UUID lsb, long position + 1 (0 marks an empty slot).
+ *
+ * Entries are added by one writer at a time, while lookups may run concurrently.
+ * Once half of the slots are used, entries are added to a table of twice the size,
+ * and the entries of the previous table are migrated to it a few slots at a time as
+ * entries are added. Meanwhile, lookups fall back to the previous table, which is
+ * released once migration is done, so lookups hold a read lock on the tables they use.
+ */
+class OffHeapUUIDIndex implements UUIDIndex {
+
+    static final long INITIAL_SLOTS = 1 << 12;
+
+    private static final int SLOT = 24;
+    /**
+     * Slots are allocated in buffers of at most this many, a single buffer can't exceed 2GB
+     */
+    private static final int REGION_SLOTS = 1 << 25;
+    /**
+     * Slots of the previous table migrated per entry added while resizing
+     */
+    private static final int MIGRATION_STEP = 4;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Table entries are added to
+     */
+    private volatile Table table = new Table(INITIAL_SLOTS);
+    /**
+     * Table being migrated to {@link #table}, null if there's none
+     */
+    private volatile Table previous;
+    /**
+     * Number of slots of {@link #previous} migrated so far
+     */
+    private long migrated;
+
+    /**
+     * Hash table in direct buffers
+     */
+    private static class Table {
+        private final ByteBuffer[] regions;
+        private final long slots;
+        /**
+         * Number of used slots, guarded by the index's monitor
+         */
+        private long size;
+
+        Table(long slots) {
+            this.slots = slots;
+            regions = new ByteBuffer[(int) ((slots + REGION_SLOTS - 1) / REGION_SLOTS)];
+            for (int i = 0; i < regions.length; i++) {
+                regions[i] = ByteBuffer.allocateDirect((int) Math.min(REGION_SLOTS, slots - (long) i * REGION_SLOTS) * SLOT);
+            }
+        }
+
+        long get(long slot, int field) {
+            return regions[(int) (slot / REGION_SLOTS)].getLong((int) (slot % REGION_SLOTS) * SLOT + field);
+        }
+
+        void set(long slot, int field, long value) {
+            regions[(int) (slot / REGION_SLOTS)].putLong((int) (slot % REGION_SLOTS) * SLOT + field, value);
+        }
+
+        /**
+         * Returns the slot holding the UUID, or the empty slot it belongs to
+         */
+        long find(long msb, long lsb) {
+            long mask = slots - 1;
+            long slot = BloomFilter.mix(msb * 0x9E3779B97F4A7C15L + lsb) & mask;
+            while (get(slot, 16) != 0 && (get(slot, 0) != msb || get(slot, 8) != lsb)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        void release() {
+            for (ByteBuffer region : regions) {
+                MappedUUIDIndex.unmap(region);
+            }
+        }
+    }
+
+    @Override
+    public long get(UUID uuid) {
+        lock.readLock().lock();
+        try {
+            Table table = this.table;
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            long position = table.get(table.find(msb, lsb), 16);
+            Table previous = this.previous;
+            if (position == 0 && previous != null) {
+                position = previous.get(previous.find(msb, lsb), 16);
+            }
+            return position - 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public synchronized void put(UUID uuid, long position) {
+        Table table = this.table;
+        long slot = table.find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (table.get(slot, 16) == 0) {
+            table.size++;
+        }
+        table.set(slot, 0, uuid.getMostSignificantBits());
+        table.set(slot, 8, uuid.getLeastSignificantBits());
+        table.set(slot, 16, position + 1);
+        if (previous != null) {
+            migrate(MIGRATION_STEP);
+        } else if (table.size * 2 > table.slots) {
+            resize();
+        }
+    }
+
+    /**
+     * Starts adding entries to a table with twice the number of slots
+     */
+    private void resize() {
+        Table resized = new Table(table.slots * 2);
+        lock.writeLock().lock();
+        try {
+            previous = table;
+            table = resized;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        migrated = 0;
+    }
+
+    /**
+     * Migrates entries of up to <code>count</code> slots of the previous table, and
+     * releases it once all of them are migrated
+     */
+    private void migrate(int count) {
+        Table previous = this.previous;
+        long end = Math.min(previous.slots, migrated + count);
+        for (; migrated < end; migrated++) {
+            long position = previous.get(migrated, 16);
+            if (position != 0) {
+                long msb = previous.get(migrated, 0);
+                long lsb = previous.get(migrated, 8);
+                long target = table.find(msb, lsb);
+                // entries added since resizing started are newer
+                if (table.get(target, 16) == 0) {
+                    table.set(target, 0, msb);
+                    table.set(target, 8, lsb);
+                    table.set(target, 16, position);
+                    table.size++;
+                }
+            }
+        }
+        if (migrated == previous.slots) {
+            lock.writeLock().lock();
+            try {
+                this.previous = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            previous.release();
+        }
+    }
+
+    @Override
+    public long position() {
+        return 0;
+    }
+
+    @Override
+    public void forEach(Consumer<UUID> consumer) {
+        lock.readLock().lock();
+        try {
+            Table table = this.table;
+            for (long slot = 0; slot < table.slots; slot++) {
+                if (table.get(slot, 16) != 0) {
+                    consumer.accept(new UUID(table.get(slot, 0), table.get(slot, 8)));
+                }
+            }
+            Table previous = this.previous;
+            if (previous != null) {
+                for (long slot = 0; slot < previous.slots; slot++) {
+                    if (previous.get(slot, 16) != 0) {
+                        long msb = previous.get(slot, 0);
+                        long lsb = previous.get(slot, 8);
+                        if (table.get(table.find(msb, lsb), 16) == 0) {
+                            consumer.accept(new UUID(msb, lsb));
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+}
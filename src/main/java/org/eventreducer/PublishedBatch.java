@@ -0,0 +1,81 @@
+package org.eventreducer;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Collects results of a batch of published commands into a single future,
+ * in the order the commands were published. The future fails as soon as any
+ * of the commands fails.
+ */
+class PublishedBatch<T> {
+
+    private final Publisher.CommandPublished<T>[] results;
+    private final AtomicInteger remaining;
+    private final CompletableFuture<List<Publisher.CommandPublished<T>>> future = new CompletableFuture<>();
+
+    PublishedBatch(int size) {
+        results = new Publisher.CommandPublished[size];
+        remaining = new AtomicInteger(size);
+        if (size == 0) {
+            future.complete(Collections.emptyList());
+        }
+    }
+
+    CompletableFuture<List<Publisher.CommandPublished<T>>> future() {
+        return future;
+    }
+
+    void complete(int index, Publisher.CommandPublished<T> result) {
+        results[index] = result;
+        if (remaining.decrementAndGet() == 0) {
+            future.complete(Arrays.asList(results));
+        }
+    }
+
+    BiConsumer<Optional<T>, Long> completionHandler(int index) {
+        return (optional, events) -> complete(index, new Publisher.CommandPublished<>(optional, events));
+    }
+
+    Consumer<Throwable> exceptionHandler() {
+        return future::completeExceptionally;
+    }
+
+    /**
+     * Publishes a batch of commands split up amongst a number of publishers
+     *
+     * @param commands commands
+     * @param key partitioning key
+     * @param publisher publisher of a partition
+     * @return future of all commands' results, in the order of <code>commands</code>
+     */
+    static <T, C extends Command<T>, K> CompletableFuture<List<Publisher.CommandPublished<T>>> partitioned(
+            Collection<C> commands, Function<C, K> key, Function<K, Publisher<T, C>> publisher) {
+        Map<K, List<C>> partitions = new LinkedHashMap<>();
+        Map<K, List<Integer>> indices = new HashMap<>();
+        int index = 0;
+        for (C command : commands) {
+            K k = key.apply(command);
+            partitions.computeIfAbsent(k, x -> new ArrayList<>()).add(command);
+            indices.computeIfAbsent(k, x -> new ArrayList<>()).add(index++);
+        }
+        PublishedBatch<T> batch = new PublishedBatch<>(commands.size());
+        for (Map.Entry<K, List<C>> partition : partitions.entrySet()) {
+            List<Integer> partitionIndices = indices.get(partition.getKey());
+            publisher.apply(partition.getKey()).publishAll(partition.getValue()).whenComplete((results, throwable) -> {
+                if (throwable != null) {
+                    batch.future.completeExceptionally(throwable);
+                } else {
+                    for (int i = 0; i < results.size(); i++) {
+                        batch.complete(partitionIndices.get(i), results.get(i));
+                    }
+                }
+            });
+        }
+        return batch.future;
+    }
+}
@@ -3,6 +3,8 @@ package org.eventreducer;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
@@ -27,6 +29,64 @@ public interface Publisher<T, C extends Command<T>> {
         return future;
     }
 
+    /**
+     * Publishes a command unless the publisher is at capacity, without ever blocking the caller,
+     * so that callers can shed load or apply backpressure instead.
+     *
+     * By default, publishes the command unconditionally.
+     *
+     * @param command Command to be published
+     * @param completionHandler Completion handler to be used once the command has been successfully processed
+     * @param exceptionHandler Exception handler to be used if an exception get thrown while processing the command
+     * @return <code>false</code> if the command was rejected, in which case neither handler gets invoked
+     */
+    default boolean tryPublish(C command, BiConsumer<Optional<T>, Long> completionHandler, Consumer<Throwable> exceptionHandler) {
+        publish(command, completionHandler, exceptionHandler);
+        return true;
+    }
+
+    /**
+     * Publishes a command unless the publisher is at capacity, see {@link #tryPublish(Command, BiConsumer, Consumer)}
+     *
+     * @param command Command to be published
+     * @return A completable future containing command's return value and a number of events created,
+     *         completed exceptionally with {@link CommandRejectedException} right away if the command was rejected
+     */
+    default CompletableFuture<CommandPublished<T>> tryPublish(C command) {
+        CompletableFuture<CommandPublished<T>> future = new CompletableFuture<>();
+        if (!tryPublish(command, (Optional<T> optional, Long events) ->
+                future.complete(new CommandPublished<>(optional, events)), future::completeExceptionally)) {
+            future.completeExceptionally(new CommandRejectedException(command));
+        }
+        return future;
+    }
+
+    /**
+     * @return Number of commands that can be published without blocking (or being rejected by
+     *         {@link #tryPublish(Command)}), {@link Long#MAX_VALUE} if unbounded (default)
+     */
+    default long remainingCapacity() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Publishes a batch of commands. Publishers backed by a ring buffer claim
+     * slots for the whole batch at once, instead of one by one.
+     *
+     * @param commands Commands to be published
+     * @return A completable future of all commands' results, in the order of <code>commands</code>;
+     *         completed exceptionally as soon as any of the commands fails
+     */
+    default CompletableFuture<List<CommandPublished<T>>> publishAll(Collection<C> commands) {
+        PublishedBatch<T> batch = new PublishedBatch<>(commands.size());
+        Consumer<Throwable> exceptionHandler = batch.exceptionHandler();
+        int index = 0;
+        for (C command : commands) {
+            publish(command, batch.completionHandler(index++), exceptionHandler);
+        }
+        return batch.future();
+    }
+
     @AllArgsConstructor
     class CommandPublished<T> {
         @Getter
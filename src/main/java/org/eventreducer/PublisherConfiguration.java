@@ -0,0 +1,84 @@
+package org.eventreducer;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.dsl.ProducerType;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.experimental.Accessors;
+import org.eventreducer.annotations.Publishing;
+
+import java.util.function.Supplier;
+
+/**
+ * Disruptor settings of a command class' publisher. Latency-critical commands
+ * may want a large ring buffer and a busy-spinning or yielding wait strategy, while
+ * rarely published ones are better off with a small ring buffer and a blocking strategy.
+ *
+ * Configured with {@link Publishing} on the command class, or with
+ * {@link Endpoint.EndpointBuilder#publisherConfiguration(Class, PublisherConfiguration)}, which takes precedence.
+ */
+@Accessors(fluent = true)
+public class PublisherConfiguration {
+
+    /**
+     * Ring buffer size, has to be a power of 2. {@link SinglePublisherService#RING_BUFFER_SIZE} by default.
+     */
+    @Getter @Setter
+    private int ringBufferSize = SinglePublisherService.RING_BUFFER_SIZE;
+
+    /**
+     * Supplies wait strategies, {@link BlockingWaitStrategy} by default. Every publisher
+     * (there can be a few per command class, see {@link MultiplePublisherService}) gets its own.
+     */
+    @Getter @Setter
+    private Supplier<WaitStrategy> waitStrategy = BlockingWaitStrategy::new;
+
+    /**
+     * {@link ProducerType#MULTI} by default. {@link ProducerType#SINGLE} is only safe
+     * if commands of the class are always published from the same thread.
+     */
+    @Getter @Setter
+    private ProducerType producerType = ProducerType.MULTI;
+
+    /**
+     * Number of threads extracting events ({@link Command#events(Endpoint)}), 1 by default.
+     * With more than one, events of different commands are extracted concurrently,
+     * which pays off if extraction does expensive validation or queries; commands are
+     * still journalled, indexed and completed in the order they were published.
+     */
+    @Getter
+    private int extractors = 1;
+
+    public PublisherConfiguration extractors(int extractors) {
+        if (extractors < 1) {
+            throw new IllegalArgumentException("At least one extractor is required");
+        }
+        this.extractors = extractors;
+        return this;
+    }
+
+    /**
+     * @return configuration of a command class, as annotated with {@link Publishing}, or the default one
+     */
+    @SneakyThrows
+    public static PublisherConfiguration of(Class<? extends Command> klass) {
+        PublisherConfiguration configuration = new PublisherConfiguration();
+        Publishing publishing = klass.getAnnotation(Publishing.class);
+        if (publishing != null) {
+            Class<? extends WaitStrategy> waitStrategy = publishing.waitStrategy();
+            configuration.
+                    ringBufferSize(publishing.ringBufferSize()).
+                    waitStrategy(() -> newInstance(waitStrategy)).
+                    producerType(publishing.producerType()).
+                    extractors(publishing.extractors());
+        }
+        return configuration;
+    }
+
+    @SneakyThrows
+    private static WaitStrategy newInstance(Class<? extends WaitStrategy> klass) {
+        return klass.newInstance();
+    }
+}
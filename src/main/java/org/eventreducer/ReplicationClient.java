@@ -0,0 +1,164 @@
+package org.eventreducer;
+
+import com.google.common.util.concurrent.AbstractService;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Keeps a standby's journal a copy of a primary's one, by applying records shipped by
+ * a {@link ReplicationServer}, so that the standby can take over without replaying the journal.
+ *
+ * The standby's journal has to be a {@link SegmentedJournal} with the same segment size as
+ * the primary's one, and nothing but this client should journal into it. Applied records are
+ * indexed as soon as all records of their command have arrived, so the standby's indices
+ * are kept warm, too. Records are acknowledged once {@link Journal#flush() flushed}, in batches
+ * of whatever has arrived in the meantime.
+ *
+ * If the connection is lost, or the primary sends a record that can't be valid, the client
+ * discards the records of a command that didn't arrive in full, reconnects and resumes at
+ * its journal's position.
+ */
+@Slf4j
+public class ReplicationClient extends AbstractService {
+
+    /**
+     * Maximum number of records applied before acknowledging them
+     */
+    private static final int BATCH = 1024;
+    private static final long RECONNECT_DELAY = 1000;
+
+    private final Endpoint endpoint;
+    private final SegmentedJournal journal;
+    private final InetSocketAddress primary;
+    private Thread thread;
+    private volatile Socket socket;
+
+    /**
+     * @param endpoint standby's endpoint
+     * @param primary address of the primary's {@link ReplicationServer}
+     */
+    public ReplicationClient(Endpoint endpoint, InetSocketAddress primary) {
+        if (!(endpoint.journal() instanceof SegmentedJournal)) {
+            throw new IllegalArgumentException("Standby journal has to be a SegmentedJournal, got " +
+                    endpoint.journal().getClass().getSimpleName());
+        }
+        this.endpoint = endpoint;
+        this.journal = (SegmentedJournal) endpoint.journal();
+        this.primary = primary;
+    }
+
+    /**
+     * @return position up to which records are replicated
+     */
+    public long position() {
+        return journal.position();
+    }
+
+    @Override
+    protected void doStart() {
+        thread = new Thread(this::run, "replication-client-" + primary);
+        thread.setDaemon(true);
+        notifyStarted();
+        thread.start();
+    }
+
+    @Override
+    protected void doStop() {
+        Socket socket = this.socket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.error("Error while closing replication socket", e);
+            }
+        }
+        thread.interrupt();
+        notifyStopped();
+    }
+
+    private void run() {
+        while (isRunning()) {
+            try (Socket socket = new Socket()) {
+                this.socket = socket;
+                socket.connect(primary);
+                socket.setTcpNoDelay(true);
+                replicate(socket);
+            } catch (Exception e) {
+                if (!isRunning()) {
+                    return;
+                }
+                log.warn("Replication from " + primary + " interrupted, reconnecting", e);
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void replicate(Socket socket) throws Exception {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        int segmentSize = input.readInt();
+        if (segmentSize != journal.segmentSize()) {
+            throw new IOException("Primary has segments of " + segmentSize + " bytes, expected " + journal.segmentSize());
+        }
+        journal.discardIncomplete();
+        output.writeLong(journal.position());
+        output.flush();
+        log.info("Replicating from {} at position {}", primary, journal.position());
+
+        while (!socket.isClosed()) {
+            long from = journal.position();
+            int records = 0;
+            do {
+                long position = input.readLong();
+                int length = input.readInt();
+                // a record fits in a segment along with its length
+                if (length < 0 || length > journal.segmentSize() - 4) {
+                    throw new IOException("Record of " + length + " bytes at position " + position + " from " + primary +
+                            " doesn't fit in segments of " + journal.segmentSize() + " bytes, closing the connection");
+                }
+                ByteBuffer record = ByteBuffer.allocate(4 + length);
+                record.putInt(length);
+                input.readFully(record.array(), 4, length);
+                record.rewind();
+                journal.appendRecord(position, record);
+                records++;
+            } while (records < BATCH && input.available() > 0);
+
+            long to = journal.position();
+            if (to == from) {
+                // the rest of a command is yet to arrive
+                continue;
+            }
+            index(from, to);
+            journal.flush();
+            journal.signalSubscriptions();
+            output.writeLong(to);
+            output.flush();
+        }
+    }
+
+    /**
+     * Indexes records applied between two positions, the same way publishers do
+     */
+    private void index(long from, long to) {
+        Iterator<Serializable> iterator = journal.iterator(from, to);
+        while (iterator.hasNext()) {
+            Serializable o = iterator.next();
+            try {
+                o.entitySerializer().index(endpoint.indexFactory(), o);
+            } catch (ClassNotFoundException | IllegalAccessException | InstantiationException e) {
+                log.error("Error while indexing", e);
+            }
+        }
+    }
+
+}
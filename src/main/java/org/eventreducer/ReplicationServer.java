@@ -0,0 +1,261 @@
+package org.eventreducer;
+
+import com.google.common.util.concurrent.AbstractService;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ships records of a primary's journal to standbys ({@link ReplicationClient}) connecting over TCP.
+ *
+ * Protocol, after a standby connects:
+ *
+ * <pre>
+ *     primary:  int   segment size
+ *     standby:  long  position to start at (its journal's position)
+ *     primary:  for every record: long position, followed by the record as it is stored
+ *     standby:  long  position up to which records are applied and durable, every now and then
+ * </pre>
+ *
+ * Only records up to the primary's {@link Journal#durablePosition() durable position} are shipped,
+ * so a standby never has records the primary may lose in a crash, and positions are always
+ * at command boundaries. A standby discards the records of a command it didn't receive
+ * in full before it reconnects.
+ *
+ * Acknowledgements are pipelined: records keep being shipped while earlier ones
+ * are being applied. In {@link Mode#SYNCHRONOUS} mode, publishers don't complete commands
+ * until a standby has acknowledged them; if no standby is connected, they wait for one.
+ */
+@Slf4j
+public class ReplicationServer extends AbstractService {
+
+    public enum Mode {
+        /**
+         * Commands complete once a standby has acknowledged them
+         */
+        SYNCHRONOUS,
+        /**
+         * Commands complete regardless of standbys, which may lag behind
+         */
+        ASYNCHRONOUS
+    }
+
+    private final SegmentedJournal journal;
+    private final InetSocketAddress address;
+
+    /**
+     * Commit mode, {@link Mode#ASYNCHRONOUS} by default. Can't be changed once started.
+     */
+    @Getter @Setter @Accessors(fluent = true)
+    private Mode mode = Mode.ASYNCHRONOUS;
+
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private final CopyOnWriteArrayList<Socket> sockets = new CopyOnWriteArrayList<>();
+    private final AtomicLong acknowledged = new AtomicLong();
+    /**
+     * Futures waiting for acknowledgements, by position
+     */
+    private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> waiting = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param journal primary's journal
+     * @param address address to listen at, port 0 picks any free port
+     */
+    public ReplicationServer(SegmentedJournal journal, InetSocketAddress address) {
+        this.journal = journal;
+        this.address = address;
+    }
+
+    /**
+     * @return port the server listens at, once started
+     */
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return position up to which a standby has acknowledged records
+     */
+    public long acknowledged() {
+        return acknowledged.get();
+    }
+
+    /**
+     * Returns a future completed once a standby has acknowledged records up to <code>position</code>
+     */
+    public CompletableFuture<Void> acknowledged(long position) {
+        if (acknowledged.get() >= position) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> future = waiting.computeIfAbsent(position, p -> new CompletableFuture<>());
+        // an acknowledgement may have arrived in the meantime
+        if (acknowledged.get() >= position) {
+            complete(acknowledged.get());
+        }
+        if (!isRunning()) {
+            future.completeExceptionally(new IllegalStateException("Replication server isn't running"));
+        }
+        return future;
+    }
+
+    private void acknowledge(long position) {
+        acknowledged.accumulateAndGet(position, Math::max);
+        complete(position);
+    }
+
+    private void complete(long position) {
+        Map<Long, CompletableFuture<Void>> acknowledgedFutures = waiting.headMap(position, true);
+        for (Map.Entry<Long, CompletableFuture<Void>> entry : acknowledgedFutures.entrySet()) {
+            entry.getValue().complete(null);
+            acknowledgedFutures.remove(entry.getKey());
+        }
+    }
+
+    @Override
+    protected void doStart() {
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(address);
+        } catch (IOException e) {
+            notifyFailed(e);
+            return;
+        }
+        acceptor = new Thread(this::accept, "replication-server-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        notifyStarted();
+        if (mode == Mode.SYNCHRONOUS) {
+            journal.synchronousReplication = this;
+        }
+        acceptor.start();
+        log.info("Replicating journal at {} in {} mode", serverSocket.getLocalSocketAddress(), mode);
+    }
+
+    @Override
+    protected void doStop() {
+        if (journal.synchronousReplication == this) {
+            journal.synchronousReplication = null;
+        }
+        try {
+            serverSocket.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            log.error("Error while closing replication sockets", e);
+        }
+        IllegalStateException stopped = new IllegalStateException("Replication server stopped");
+        waiting.values().forEach(future -> future.completeExceptionally(stopped));
+        waiting.clear();
+        notifyStopped();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                Thread sender = new Thread(() -> ship(socket), "replication-sender-" + socket.getRemoteSocketAddress());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.error("Error while accepting standbys", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ships records to a standby as they are journalled, and reads its acknowledgements
+     * from a separate thread
+     */
+    private void ship(Socket socket) {
+        Thread sender = Thread.currentThread();
+        Runnable signal = () -> LockSupport.unpark(sender);
+        journal.addListener(signal);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            output.writeInt(journal.segmentSize());
+            output.flush();
+            long position = input.readLong();
+            log.info("Standby {} connected at position {}", socket.getRemoteSocketAddress(), position);
+
+            Thread acknowledgements = new Thread(() -> readAcknowledgements(socket, input),
+                    "replication-acknowledgements-" + socket.getRemoteSocketAddress());
+            acknowledgements.setDaemon(true);
+            acknowledgements.start();
+
+            WritableByteChannel channel = Channels.newChannel(output);
+            ByteBuffer header = ByteBuffer.allocate(8);
+            while (!socket.isClosed()) {
+                long end = journal.durablePosition();
+                if (position >= end) {
+                    output.flush();
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                    continue;
+                }
+                while (position < end) {
+                    position = journal.recordAt(position);
+                    if (position >= end) {
+                        break;
+                    }
+                    ByteBuffer record = journal.rawRecord(position);
+                    header.clear();
+                    header.putLong(position).flip();
+                    channel.write(header);
+                    position += record.remaining();
+                    while (record.hasRemaining()) {
+                        channel.write(record);
+                    }
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            log.info("Standby {} disconnected", socket.getRemoteSocketAddress());
+        } catch (Exception e) {
+            log.error("Error while replicating to standby " + socket.getRemoteSocketAddress(), e);
+        } finally {
+            journal.removeListener(signal);
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.error("Error while closing replication socket", e);
+            }
+        }
+    }
+
+    private void readAcknowledgements(Socket socket, DataInputStream input) {
+        try {
+            while (!socket.isClosed()) {
+                acknowledge(input.readLong());
+            }
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+}
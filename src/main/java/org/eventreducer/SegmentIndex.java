@@ -0,0 +1,106 @@
+package org.eventreducer;
+
+import org.apache.commons.net.ntp.TimeStamp;
+import org.eventreducer.hlc.HybridTimestamp;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Offsets of the records of a journal segment, in journal order, along with the lowest
+ * and highest timestamps among them. Records are journalled in timestamp order, so records
+ * within a range of timestamps are found by binary search over the offsets.
+ *
+ * Appended to by one writer at a time, read concurrently.
+ */
+class SegmentIndex {
+
+    private volatile int[] offsets = new int[16];
+    private volatile int size;
+    private volatile TimeStamp min;
+    private volatile TimeStamp max;
+
+    void add(int offset, TimeStamp timestamp) {
+        int[] offsets = this.offsets;
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            this.offsets = offsets;
+        }
+        offsets[size] = offset;
+        if (size == 0) {
+            min = timestamp;
+        }
+        max = timestamp;
+        size++;
+    }
+
+    /**
+     * @return number of records
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return lowest timestamp, null if there are no records
+     */
+    TimeStamp min() {
+        return min;
+    }
+
+    /**
+     * @return highest timestamp, null if there are no records
+     */
+    TimeStamp max() {
+        return max;
+    }
+
+    /**
+     * @return offset of the <code>i</code>-th record within the segment
+     */
+    int offset(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * Checks whether any of the records may have a timestamp in the given range
+     *
+     * @param from lower bound (inclusive)
+     * @param to upper bound (exclusive)
+     */
+    boolean overlaps(TimeStamp from, TimeStamp to) {
+        return size > 0 && HybridTimestamp.compare(max, from) >= 0 && HybridTimestamp.compare(min, to) < 0;
+    }
+
+    /**
+     * Finds the first record with a timestamp not lower than <code>timestamp</code>
+     *
+     * @param timestamp timestamp
+     * @param timestampAt reads the timestamp of the record at an offset
+     * @return index of the record, or {@link #size()} if there's no such record
+     */
+    int search(TimeStamp timestamp, IntFunction<TimeStamp> timestampAt) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (HybridTimestamp.compare(timestampAt.apply(offsets[middle]), timestamp) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds the first record at or after an offset
+     *
+     * @return index of the record, or {@link #size()} if there's no such record
+     */
+    int search(int offset) {
+        int size = this.size;
+        int i = Arrays.binarySearch(offsets, 0, size, offset);
+        return i >= 0 ? i : -i - 1;
+    }
+}
@@ -0,0 +1,1195 @@
+package org.eventreducer;
+
+import lombok.Getter;
+import lombok.SneakyThrows;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.net.ntp.TimeStamp;
+import org.eventreducer.hlc.HybridTimestamp;
+import org.eventreducer.hlc.PhysicalTimeProvider;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Journal that appends records to a sequence of fixed-size buffers (segments).
+ * Subclasses decide where segments are allocated.
+ *
+ * Every record is laid out as follows:
+ *
+ * <pre>
+ *     int     length of the record, excluding this field (0 marks the end of a segment)
+ *     int     CRC32 checksum of the rest of the record
+ *     byte    kind ({@link #COMMAND} or {@link #EVENT}), with {@link #END} set on the last record of a command
+ *     byte    layout hash length
+ *     byte[]  layout hash ({@link Serializer#hash()})
+ *     UUID    uuid
+ *     long    timestamp
+ *     String  trace (commands) or UUID command uuid (events)
+ *     ...     payload ({@link Serializer#serialize(Serializable, ByteBuffer)})
+ * </pre>
+ *
+ * A command and all of its events are always written contiguously, so events of a command
+ * are found by reading the records that immediately follow it. None of them are visible
+ * to readers until all of them are written.
+ *
+ * Records are journalled in timestamp order. Every segment keeps the offsets of its records
+ * (see {@link SegmentIndex}), so that records are found by timestamp without an index entry
+ * per record on the heap.
+ *
+ * Records are deserialized only when looked up or iterated over, straight from
+ * the segments, nothing is copied on the way to {@link Serializer#deserialize(ByteBuffer)}.
+ *
+ * Exports consist of the segment size and the end position (int and long),
+ * followed by the contents of every segment up to the end position. They can be
+ * imported into any segmented journal with the same segment size.
+ */
+@Slf4j
+public abstract class SegmentedJournal extends Journal {
+
+    static final byte COMMAND = 1;
+    static final byte EVENT = 2;
+    /**
+     * Flag of the kind of the last record of a command, which completes the command
+     */
+    static final byte END = (byte) 0x80;
+
+    public static final long DEFAULT_BLOOM_FILTER_SIZE = 1_000_000;
+    public static final double DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * Size of every segment, in bytes. A single record can't be larger than that.
+     */
+    @Getter @Accessors(fluent = true)
+    private final int segmentSize;
+
+    protected final List<ByteBuffer> segments = new CopyOnWriteArrayList<>();
+    /**
+     * Positions of commands and events by UUID, kept on the heap unless a subclass
+     * replaces it before {@link #recover(Checkpoint)}
+     */
+    protected UUIDIndex uuidIndex = new MemoryUUIDIndex();
+    /**
+     * UUIDs of all journalled commands and events, probed before looking them up
+     */
+    private volatile BloomFilter bloomFilter = new BloomFilter(DEFAULT_BLOOM_FILTER_SIZE, DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE);
+    /**
+     * Record offsets and timestamp ranges by segment number, kept up to date as records
+     * are journalled, or built by scanning a segment the first time it is needed
+     */
+    private final Map<Integer, SegmentIndex> segmentIndexes = new ConcurrentHashMap<>();
+    /**
+     * Lowest and highest timestamps of segments whose indexes weren't built yet, by segment number,
+     * as restored from a {@link Checkpoint}
+     */
+    private final Map<Integer, long[]> segmentBounds = new ConcurrentHashMap<>();
+    private final ClassCounters counters = new ClassCounters();
+    /**
+     * Record counts found by {@link #recover(Checkpoint)}, by layout hash. These are resolved
+     * into {@link #counters} once the endpoint (and therefore the serializers) is known.
+     */
+    private final Map<ByteBuffer, Long> unresolvedCounts = new HashMap<>();
+    /**
+     * Counts of all journalled records by layout hash, for checkpoints
+     */
+    private final Map<ByteBuffer, Long> counts = new HashMap<>();
+
+    /**
+     * Guards making records visible (counting them and moving {@link #end}), so that
+     * counts and the end are read consistently. Never held while waiting for another lock.
+     */
+    private final Object endLock = new Object();
+    /**
+     * Position right after the last journalled record
+     */
+    private volatile long end;
+    /**
+     * Position right after the last written record, ahead of {@link #end} while
+     * a command is being journalled. Guarded by this journal's monitor.
+     */
+    private long tail;
+    /**
+     * Positions of records appended by {@link #appendRecord(long, ByteBuffer)} that
+     * aren't visible yet. Guarded by this journal's monitor.
+     */
+    private final List<Long> appended = new ArrayList<>();
+
+    protected SegmentedJournal(PhysicalTimeProvider physicalTimeProvider, int segmentSize) {
+        super(physicalTimeProvider);
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Allocates a new, zero-filled segment
+     *
+     * @param index segment number, starting with 0
+     * @return segment buffer of {@link #segmentSize()} bytes
+     * @throws IOException if the segment can't be allocated
+     */
+    protected abstract ByteBuffer allocateSegment(int index) throws IOException;
+
+    /**
+     * Called with this journal's monitor held whenever {@link #end()} advances, once
+     * records before it are committed and can no longer be erased. Does nothing by default.
+     *
+     * @param end new end of the journal
+     */
+    protected void committed(long end) {
+    }
+
+    /**
+     * State that recovery would otherwise rebuild from the records before a position:
+     * counts of records by layout hash, the Bloom filter, and the lowest and highest
+     * timestamps of every segment before the one containing the position.
+     *
+     * The Bloom filter may have UUIDs of records after the position added, too,
+     * which merely makes it report them as possibly journalled.
+     */
+    @Accessors(fluent = true)
+    protected static class Checkpoint {
+        @Getter
+        private final long position;
+        private final Map<ByteBuffer, Long> counts;
+        private final Map<Integer, long[]> bounds;
+        private final BloomFilter bloomFilter;
+
+        private Checkpoint(long position, Map<ByteBuffer, Long> counts, Map<Integer, long[]> bounds, BloomFilter bloomFilter) {
+            this.position = position;
+            this.counts = counts;
+            this.bounds = bounds;
+            this.bloomFilter = bloomFilter;
+        }
+
+        public void writeTo(DataOutput output) throws IOException {
+            output.writeLong(position);
+            output.writeInt(counts.size());
+            for (Map.Entry<ByteBuffer, Long> entry : counts.entrySet()) {
+                ByteBuffer hash = entry.getKey().duplicate();
+                output.writeByte(hash.remaining());
+                while (hash.hasRemaining()) {
+                    output.writeByte(hash.get());
+                }
+                output.writeLong(entry.getValue());
+            }
+            output.writeInt(bounds.size());
+            for (Map.Entry<Integer, long[]> entry : bounds.entrySet()) {
+                output.writeInt(entry.getKey());
+                output.writeLong(entry.getValue()[0]);
+                output.writeLong(entry.getValue()[1]);
+            }
+            bloomFilter.writeTo(output);
+        }
+
+        public static Checkpoint readFrom(DataInput input) throws IOException {
+            long position = input.readLong();
+            Map<ByteBuffer, Long> counts = new HashMap<>();
+            for (int i = input.readInt(); i > 0; i--) {
+                byte[] hash = new byte[input.readUnsignedByte()];
+                input.readFully(hash);
+                counts.put(ByteBuffer.wrap(hash), input.readLong());
+            }
+            Map<Integer, long[]> bounds = new HashMap<>();
+            for (int i = input.readInt(); i > 0; i--) {
+                bounds.put(input.readInt(), new long[]{input.readLong(), input.readLong()});
+            }
+            return new Checkpoint(position, counts, bounds, BloomFilter.readFrom(input));
+        }
+    }
+
+    /**
+     * Captures the state recovery would rebuild from the records journalled so far
+     *
+     * @return checkpoint at {@link #position()}
+     */
+    protected Checkpoint checkpoint() {
+        synchronized (endLock) {
+            long position = end;
+            Map<Integer, long[]> bounds = new HashMap<>();
+            for (int segment = 0; segment < position / segmentSize; segment++) {
+                SegmentIndex index = segmentIndexes.get(segment);
+                if (index != null && index.size() > 0) {
+                    bounds.put(segment, new long[]{index.min().ntpValue(), index.max().ntpValue()});
+                } else if (segmentBounds.containsKey(segment)) {
+                    bounds.put(segment, segmentBounds.get(segment));
+                }
+            }
+            return new Checkpoint(position, new HashMap<>(counts), bounds, bloomFilter);
+        }
+    }
+
+    /**
+     * Indexes records of the segments that were added before any journalling
+     * took place (for example, when reopening a journal), starting at a checkpoint.
+     *
+     * Checksums of all records read are verified. A command is journalled only once its
+     * last record (marked with {@link #END}) is read, and the journal is truncated after
+     * the last complete command if it's followed by a torn or corrupted record,
+     * or by an incomplete command.
+     *
+     * @param checkpoint checkpoint to start at, or null to read all records
+     */
+    protected void recover(Checkpoint checkpoint) {
+        long position = 0;
+        if (checkpoint != null && checkpoint.position() > (long) segments.size() * segmentSize) {
+            log.warn("Checkpoint at position {} is beyond the end of the segments, reading all records", checkpoint.position());
+            checkpoint = null;
+        }
+        if (checkpoint != null) {
+            position = checkpoint.position();
+            synchronized (endLock) {
+                checkpoint.counts.forEach((hash, count) -> {
+                    unresolvedCounts.merge(hash, count, Long::sum);
+                    counts.merge(hash, count, Long::sum);
+                });
+            }
+            segmentBounds.putAll(checkpoint.bounds);
+            bloomFilter = checkpoint.bloomFilter;
+            if (uuidIndex.position() < position) {
+                reindex(uuidIndex.position(), position);
+            }
+        }
+        long start = position;
+        end = position;
+        CRC32 crc = new CRC32();
+        List<Long> group = new ArrayList<>();
+        long records = 0;
+        boolean torn = false;
+        while (position / segmentSize < segments.size()) {
+            ByteBuffer buffer = buffer(position);
+            int length = buffer.remaining() < 4 ? 0 : buffer.getInt();
+            if (length == 0) {
+                position = nextSegment(position);
+                continue;
+            }
+            if (!intact(buffer, length, crc)) {
+                torn = true;
+                break;
+            }
+            group.add(position);
+            position += 4 + length;
+            if ((buffer.get(buffer.position() + 4) & END) != 0) {
+                group.forEach(this::index);
+                records += group.size();
+                group.clear();
+                end = position;
+            }
+        }
+        if (torn || !group.isEmpty()) {
+            truncate(end);
+        }
+        tail = end;
+        log.info("Recovered {} record(s) after position {} from {} segment(s)", records, start, segments.size());
+    }
+
+    /**
+     * Adds the records between two positions to {@link #uuidIndex}, for when it lags behind
+     * a checkpoint (for example, if it was lost). These records are complete and intact,
+     * as they precede the checkpoint.
+     */
+    private void reindex(long from, long to) {
+        log.warn("UUID index only covers records before position {}, indexing records up to position {}", from, to);
+        long position = from;
+        long records = 0;
+        while (position < to && position / segmentSize < segments.size()) {
+            ByteBuffer buffer = buffer(position);
+            int length = buffer.remaining() < 4 ? 0 : buffer.getInt();
+            if (length == 0) {
+                position = nextSegment(position);
+                continue;
+            }
+            buffer.position(buffer.position() + 5);
+            buffer.position(buffer.position() + 1 + buffer.get(buffer.position()));
+            uuidIndex.put(new UUID(buffer.getLong(), buffer.getLong()), position);
+            position += 4 + length;
+            records++;
+        }
+        log.info("Indexed {} record(s) before position {}", records, to);
+    }
+
+    /**
+     * Adds the record at <code>position</code> to lookup structures and record counts,
+     * reading its header only. Records already in {@link #uuidIndex} aren't added to it again.
+     */
+    private void index(long position) {
+        ByteBuffer buffer = buffer(position);
+        buffer.position(buffer.position() + 9);
+        // copied, since counts outlive the segment's buffer
+        ByteBuffer hash = ByteBuffer.allocate(buffer.get());
+        buffer.get(hash.array());
+        UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+        TimeStamp timestamp = new TimeStamp(buffer.getLong());
+        bloomFilter.add(uuid);
+        if (position >= uuidIndex.position()) {
+            uuidIndex.put(uuid, position);
+        }
+        segmentIndex(position).add((int) (position % segmentSize), timestamp);
+        synchronized (endLock) {
+            unresolvedCounts.merge(hash, 1L, Long::sum);
+            counts.merge(hash, 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Verifies the checksum of a record
+     *
+     * @param buffer buffer positioned right after record's length
+     * @param length record's length
+     */
+    private boolean intact(ByteBuffer buffer, int length, CRC32 crc) {
+        if (length < 4 || length > buffer.remaining()) {
+            return false;
+        }
+        ByteBuffer record = buffer.duplicate();
+        int checksum = record.getInt();
+        record.limit(record.position() + length - 4);
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue() == checksum;
+    }
+
+    /**
+     * Discards everything from <code>position</code> on
+     */
+    private void truncate(long position) {
+        log.warn("Torn or corrupted records, truncating the journal at position {}", position);
+        erase(position, Long.MAX_VALUE);
+    }
+
+    /**
+     * Zeroes segments between two positions
+     */
+    private void erase(long from, long to) {
+        byte[] zeros = new byte[4096];
+        for (long p = from; p < to && p / segmentSize < segments.size(); p = nextSegment(p)) {
+            ByteBuffer buffer = buffer(p);
+            buffer.limit((int) Math.min(segmentSize, to - p / segmentSize * segmentSize));
+            while (buffer.hasRemaining()) {
+                buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+            }
+        }
+    }
+
+    /**
+     * @return position right after the last journalled record
+     */
+    protected long end() {
+        return end;
+    }
+
+    /**
+     * Positions of a segmented journal are offsets of records across all of its segments
+     */
+    @Override
+    public long position() {
+        return end;
+    }
+
+    @Override
+    public JournalIterator<Serializable> iterator(long from, long to) {
+        return iterator(from, to, record -> record.type() != null);
+    }
+
+    /**
+     * Replaces the Bloom filter that lets lookups of UUIDs that were never journalled
+     * return without touching the journal. By default, it is sized for
+     * {@link #DEFAULT_BLOOM_FILTER_SIZE} records with a false positive rate of
+     * {@link #DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE}; the rate grows once there
+     * are more records than the filter is sized for.
+     *
+     * @param size number of records the filter is sized for
+     * @param falsePositiveRate false positive rate at that number of records
+     * @return this journal
+     */
+    public synchronized SegmentedJournal bloomFilter(long size, double falsePositiveRate) {
+        BloomFilter bloomFilter = new BloomFilter(size, falsePositiveRate);
+        uuidIndex.forEach(bloomFilter::add);
+        this.bloomFilter = bloomFilter;
+        return this;
+    }
+
+    /**
+     * Returns the index of the segment containing <code>position</code>
+     */
+    private SegmentIndex segmentIndex(long position) {
+        return segmentIndexes.computeIfAbsent((int) (position / segmentSize), this::scan);
+    }
+
+    /**
+     * Checks whether any record of a segment may have a timestamp in the given range,
+     * without building the segment's index if its timestamps were restored from a checkpoint
+     */
+    private boolean overlaps(int segment, TimeStamp from, TimeStamp to) {
+        long[] bounds = segmentBounds.get(segment);
+        if (bounds != null && !segmentIndexes.containsKey(segment)) {
+            return HybridTimestamp.compare(new TimeStamp(bounds[1]), from) >= 0 &&
+                    HybridTimestamp.compare(new TimeStamp(bounds[0]), to) < 0;
+        }
+        return segmentIndex((long) segment * segmentSize).overlaps(from, to);
+    }
+
+    /**
+     * Indexes journalled records of a segment, reading their headers only
+     */
+    private SegmentIndex scan(int segment) {
+        SegmentIndex index = new SegmentIndex();
+        long end = this.end;
+        long position = (long) segment * segmentSize;
+        while (position < end && position / segmentSize == segment && position % segmentSize + 4 <= segmentSize) {
+            int length = buffer(position).getInt();
+            if (length == 0) {
+                break;
+            }
+            index.add((int) (position % segmentSize), timestampAt(position));
+            position += 4 + length;
+        }
+        return index;
+    }
+
+    /**
+     * Reads the timestamp of the record at <code>position</code>
+     */
+    private TimeStamp timestampAt(long position) {
+        ByteBuffer buffer = buffer(position);
+        int hashLength = buffer.get(buffer.position() + 9);
+        return new TimeStamp(buffer.getLong(buffer.position() + 10 + hashLength + 16));
+    }
+
+    private long nextSegment(long position) {
+        return ((position / segmentSize) + 1) * segmentSize;
+    }
+
+    /**
+     * Returns an independent view of the segment containing <code>position</code>,
+     * positioned at it. Subclasses that store sealed segments differently may return
+     * any buffer positioned at the record, as long as it contains the whole record.
+     */
+    protected ByteBuffer buffer(long position) {
+        ByteBuffer buffer = segments.get((int) (position / segmentSize)).duplicate();
+        buffer.position((int) (position % segmentSize));
+        return buffer;
+    }
+
+    @Override
+    public void exportTo(WritableByteChannel target) throws IOException {
+        long end = this.end;
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(segmentSize).putLong(end).flip();
+        while (header.hasRemaining()) {
+            target.write(header);
+        }
+        for (int i = 0; (long) i * segmentSize < end && i < segments.size(); i++) {
+            transferTo(i, (int) Math.min(segmentSize, end - (long) i * segmentSize), target);
+        }
+    }
+
+    @Override
+    public synchronized void importFrom(ReadableByteChannel source) throws IOException {
+        if (end > 0) {
+            throw new IllegalStateException("Can't import into a journal that isn't empty");
+        }
+        ByteBuffer header = ByteBuffer.allocate(12);
+        read(source, header);
+        header.flip();
+        int size = header.getInt();
+        long end = header.getLong();
+        if (size != segmentSize) {
+            throw new IOException("Export has segments of " + size + " bytes, expected " + segmentSize);
+        }
+        for (int i = 0; (long) i * segmentSize < end; i++) {
+            if (i == segments.size()) {
+                segments.add(allocateSegment(i));
+            }
+            transferFrom(source, i, (int) Math.min(segmentSize, end - (long) i * segmentSize));
+        }
+        recover(null);
+    }
+
+    /**
+     * Writes the beginning of a segment to a channel
+     *
+     * @param index segment number
+     * @param length number of bytes to write
+     * @param target channel to write to
+     */
+    protected void transferTo(int index, int length, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = segments.get(index).duplicate();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the beginning of a segment from a channel
+     *
+     * @param source channel to read from
+     * @param index segment number
+     * @param length number of bytes to read
+     */
+    protected void transferFrom(ReadableByteChannel source, int index, int length) throws IOException {
+        ByteBuffer buffer = segments.get(index).duplicate();
+        buffer.limit(length);
+        read(source, buffer);
+    }
+
+    private static void read(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of export");
+            }
+        }
+    }
+
+    /**
+     * Timestamps and journals the command while holding this journal's monitor,
+     * so that records are journalled in timestamp order
+     */
+    @Override
+    public synchronized long save(Command command, Stream<Event> events) throws Exception {
+        return super.save(command, events);
+    }
+
+    /**
+     * Appends the command and its events, and makes all of them visible at once.
+     * If any of them can't be appended, none of them are journalled.
+     */
+    @Override
+    protected synchronized long journal(Command command, Stream<Event> events) {
+        // events are produced lazily and producing them may fail, so they are
+        // all known before anything is appended
+        List<Event> journalled = events.collect(Collectors.toList());
+        List<Long> positions = new ArrayList<>(1 + journalled.size());
+        try {
+            positions.add(append(COMMAND, command, command.uuid(), journalled.isEmpty()));
+            for (int i = 0; i < journalled.size(); i++) {
+                positions.add(append(EVENT, journalled.get(i), command.uuid(), i == journalled.size() - 1));
+            }
+        } catch (Throwable t) {
+            erase(end, tail);
+            tail = end;
+            throw t;
+        }
+        synchronized (endLock) {
+            count(positions.get(0), command, command.timestamp());
+            for (int i = 0; i < journalled.size(); i++) {
+                count(positions.get(i + 1), journalled.get(i), journalled.get(i).timestamp());
+            }
+            end = tail;
+        }
+        committed(tail);
+        // journals that force records signal once they are forced
+        if (durablePosition() >= tail) {
+            signalSubscriptions();
+        }
+        return journalled.size();
+    }
+
+    /**
+     * Adds a journalled record to its segment's index and to record counts
+     */
+    @SneakyThrows
+    private void count(long position, Serializable entity, TimeStamp timestamp) {
+        segmentIndex(position).add((int) (position % segmentSize), timestamp);
+        counters.increment(entity.getClass());
+        counts.merge(ByteBuffer.wrap(entity.entitySerializer().hash()), 1L, Long::sum);
+    }
+
+    /**
+     * Returns the position of the record at <code>position</code>, or of the first record
+     * of the next segment if there's an end-of-segment marker at it
+     *
+     * @param position position before {@link #end()}
+     */
+    long recordAt(long position) {
+        if (position % segmentSize + 4 > segmentSize || buffer(position).getInt() == 0) {
+            return nextSegment(position);
+        }
+        return position;
+    }
+
+    /**
+     * Returns the record at <code>position</code> as it is stored, including its length
+     */
+    ByteBuffer rawRecord(long position) {
+        ByteBuffer buffer = buffer(position);
+        buffer.limit(buffer.position() + 4 + buffer.getInt(buffer.position()));
+        return buffer;
+    }
+
+    /**
+     * Appends a record copied from a journal with the same segment size, at the position
+     * it has there, so that positions of both journals stay the same. Records become
+     * visible once the last record of their command (marked with {@link #END}) is appended.
+     *
+     * @param position position of the record in the journal it was copied from
+     * @param record record, including its length
+     * @throws IOException if the record is corrupted, or doesn't belong right after
+     *                     the last appended record
+     */
+    synchronized void appendRecord(long position, ByteBuffer record) throws IOException {
+        ByteBuffer buffer = record.duplicate();
+        int length = buffer.getInt();
+        if (length != buffer.remaining() || !intact(buffer, length, new CRC32())) {
+            throw new IOException("Corrupted record at position " + position);
+        }
+        long expected = tail;
+        if (expected % segmentSize + 4 + length > segmentSize) {
+            expected = nextSegment(expected);
+        }
+        if (position != expected) {
+            throw new IOException("Record at position " + position + " doesn't follow the last appended record at " + tail);
+        }
+        if (position / segmentSize == segments.size()) {
+            segments.add(allocateSegment(segments.size()));
+        }
+        ByteBuffer target = buffer(position);
+        target.put(record.duplicate());
+        if (target.remaining() >= 4) {
+            target.putInt(0);
+        }
+        appended.add(position);
+        tail = position + 4 + length;
+
+        if ((buffer.get(buffer.position() + 4) & END) != 0) {
+            synchronized (endLock) {
+                appended.forEach(this::index);
+                end = tail;
+            }
+            appended.clear();
+            committed(tail);
+        }
+    }
+
+    /**
+     * Discards records appended with {@link #appendRecord(long, ByteBuffer)} that aren't
+     * visible yet, because the rest of their command didn't arrive
+     */
+    synchronized void discardIncomplete() {
+        if (tail > end) {
+            log.warn("Discarding an incomplete command between positions {} and {}", end, tail);
+            erase(end, tail);
+            tail = end;
+        }
+        appended.clear();
+    }
+
+    /**
+     * Writes a record after the last written one, without making it visible
+     *
+     * @return position of the record
+     */
+    @SneakyThrows
+    private long append(byte kind, Serializable entity, UUID commandUuid, boolean last) {
+        Serializer serializer = entity.entitySerializer();
+        byte[] hash = serializer.hash();
+        byte[] trace = kind == COMMAND ? ((Command) entity).trace.getBytes(StandardCharsets.UTF_8) : null;
+        int length = 4 + 1 + 1 + hash.length + 16 + 8 +
+                (kind == COMMAND ? 4 + trace.length : 16) +
+                serializer.size(entity);
+
+        if (4 + length > segmentSize) {
+            throw new IOException("Record of " + length + " bytes doesn't fit into a segment of " + segmentSize + " bytes");
+        }
+
+        long position = tail;
+        if (position % segmentSize + 4 + length > segmentSize) {
+            position = nextSegment(position);
+        }
+        if (position / segmentSize == segments.size()) {
+            segments.add(allocateSegment(segments.size()));
+        }
+
+        ByteBuffer buffer = buffer(position);
+        buffer.putInt(length);
+        int checksumPosition = buffer.position();
+        buffer.putInt(0);
+        buffer.put(last ? (byte) (kind | END) : kind);
+        buffer.put((byte) hash.length);
+        buffer.put(hash);
+        UUID uuid = ((Identifiable) entity).uuid();
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        TimeStamp timestamp = kind == COMMAND ? ((Command) entity).timestamp() : ((Event) entity).timestamp();
+        buffer.putLong(timestamp.ntpValue());
+        if (kind == COMMAND) {
+            buffer.putInt(trace.length);
+            buffer.put(trace);
+        } else {
+            buffer.putLong(commandUuid.getMostSignificantBits());
+            buffer.putLong(commandUuid.getLeastSignificantBits());
+        }
+        serializer.serialize(entity, buffer);
+        ByteBuffer record = buffer.duplicate();
+        record.flip();
+        record.position(checksumPosition + 4);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        buffer.putInt(checksumPosition, (int) crc.getValue());
+        if (buffer.remaining() >= 4) {
+            buffer.putInt(0);
+        }
+
+        uuidIndex.put(uuid, position);
+        bloomFilter.add(uuid);
+        tail = position + 4 + length;
+        return position;
+    }
+
+    /**
+     * Record header as read from a segment; the buffer is left positioned
+     * at the start of the payload.
+     */
+    private class Record {
+        private final long position;
+        private final long next;
+        private final byte kind;
+        private final Serializer serializer;
+        private final ByteBuffer buffer;
+
+        Record(long position) {
+            this.position = position;
+            buffer = buffer(position);
+            int length = buffer.getInt();
+            next = position + 4 + length;
+            buffer.getInt();
+            kind = (byte) (buffer.get() & ~END);
+            int hashLength = buffer.get();
+            ByteBuffer hash = buffer.duplicate();
+            hash.limit(buffer.position() + hashLength);
+            buffer.position(buffer.position() + hashLength);
+            serializer = endpoint().serializer(hash).orElse(null);
+        }
+
+        Class<? extends Serializable> type() {
+            return serializer == null ? null : entityClass(serializer);
+        }
+
+        UUID commandUuid() {
+            ByteBuffer b = buffer.duplicate();
+            b.position(b.position() + 16 + 8);
+            return new UUID(b.getLong(), b.getLong());
+        }
+
+        Serializable read(Command command) {
+            if (serializer == null) {
+                throw new IllegalStateException("Unknown layout of the record at " + position);
+            }
+            ByteBuffer b = buffer.duplicate();
+            UUID uuid = new UUID(b.getLong(), b.getLong());
+            TimeStamp timestamp = new TimeStamp(b.getLong());
+            if (kind == COMMAND) {
+                byte[] trace = new byte[b.getInt()];
+                b.get(trace);
+                Command c = (Command) serializer.deserialize(b);
+                c.uuid(uuid);
+                c.timestamp(timestamp);
+                c.trace = new String(trace, StandardCharsets.UTF_8);
+                return c;
+            } else {
+                UUID commandUuid = new UUID(b.getLong(), b.getLong());
+                Event e = (Event) serializer.deserialize(b);
+                e.uuid(uuid);
+                e.timestamp(timestamp);
+                e.command(command != null ? command : findCommand(commandUuid).orElse(null));
+                return e;
+            }
+        }
+    }
+
+    private static Class<? extends Serializable> entityClass(Serializer serializer) {
+        return serializer.getClass().getAnnotation(org.eventreducer.annotations.Serializer.class).value();
+    }
+
+    /**
+     * Iterates over records, starting at <code>position</code>, reading the headers only
+     */
+    private class RecordIterator implements Iterator<Record> {
+        private long position;
+        private final long end;
+
+        RecordIterator(long position) {
+            this(position, SegmentedJournal.this.end);
+        }
+
+        RecordIterator(long position, long end) {
+            this.position = position;
+            this.end = Math.min(end, SegmentedJournal.this.end);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (position < end && (position % segmentSize + 4 > segmentSize || buffer(position).getInt() == 0)) {
+                position = nextSegment(position);
+            }
+            return position < end;
+        }
+
+        @Override
+        public Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Record record = new Record(position);
+            position = record.next;
+            return record;
+        }
+    }
+
+    private <T extends Serializable> Iterator<T> iterator(byte kind, Class<? extends T> klass) {
+        return iterator(0, end, filter(kind, klass));
+    }
+
+    private static Predicate<Record> filter(byte kind, Class<? extends Serializable> klass) {
+        return record -> record.kind == kind && record.type() != null && klass.isAssignableFrom(record.type());
+    }
+
+    /**
+     * Iterates over records between two positions that match the filter, deserializing only those
+     */
+    private <T extends Serializable> JournalIterator<T> iterator(long from, long to, Predicate<Record> filter) {
+        return iterator(new RecordIterator(from, to), from, filter);
+    }
+
+    /**
+     * Iterates over records with timestamps in the given range that match the filter.
+     * Segments whose timestamps are out of the range are skipped, and the first record
+     * in the range is found by binary search within the segment.
+     */
+    private <T extends Serializable> Iterator<T> iterator(TimeStamp from, TimeStamp to, Predicate<Record> filter) {
+        long end = this.end;
+        Iterator<Record> records = new Iterator<Record>() {
+            private int segment = -1;
+            private SegmentIndex index;
+            private int record;
+            private Record next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    if (index == null) {
+                        if (++segment >= segments.size() || (long) segment * segmentSize >= end) {
+                            return false;
+                        }
+                        long start = (long) segment * segmentSize;
+                        if (overlaps(segment, from, to)) {
+                            index = segmentIndex(start);
+                            record = index.search(from, offset -> timestampAt(start + offset));
+                        }
+                        continue;
+                    }
+                    if (record >= index.size()) {
+                        index = null;
+                        continue;
+                    }
+                    long position = (long) segment * segmentSize + index.offset(record);
+                    if (position >= end || HybridTimestamp.compare(timestampAt(position), to) >= 0) {
+                        index = null;
+                        continue;
+                    }
+                    record++;
+                    next = new Record(position);
+                }
+                return true;
+            }
+
+            @Override
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Record record = next;
+                next = null;
+                return record;
+            }
+        };
+        return iterator(records, 0, filter);
+    }
+
+    /**
+     * Deserializes records that match the filter
+     *
+     * @param from position of the first record (only meaningful for consecutive records)
+     */
+    private <T extends Serializable> JournalIterator<T> iterator(Iterator<Record> records, long from, Predicate<Record> filter) {
+        return new JournalIterator<T>() {
+            private Record next;
+            private long position = from;
+            /**
+             * Command of the last record read; events of a command are contiguous,
+             * so it is decoded once for all of them
+             */
+            private Command command;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && records.hasNext()) {
+                    Record record = records.next();
+                    if (filter.test(record)) {
+                        next = record;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Record record = next;
+                next = null;
+                position = record.next;
+                if (record.kind == COMMAND) {
+                    command = (Command) record.read(null);
+                    return (T) command;
+                }
+                UUID commandUuid = record.commandUuid();
+                if (command == null || !command.uuid().equals(commandUuid)) {
+                    command = findCommand(commandUuid).orElse(null);
+                }
+                return (T) record.read(command);
+            }
+
+            @Override
+            public long position() {
+                return position;
+            }
+        };
+    }
+
+    @Override
+    public long size(Class<? extends Serializable> klass) {
+        if (!unresolvedCounts.isEmpty()) {
+            resolveCounts();
+        }
+        return counters.count(klass);
+    }
+
+    private synchronized void resolveCounts() {
+        for (Map.Entry<ByteBuffer, Long> entry : unresolvedCounts.entrySet()) {
+            Optional<Serializer> serializer = endpoint().serializer(entry.getKey());
+            if (serializer.isPresent()) {
+                counters.add(entityClass(serializer.get()), entry.getValue());
+            } else {
+                log.warn("Unknown record layout, {} record(s) won't be counted", entry.getValue());
+            }
+        }
+        unresolvedCounts.clear();
+    }
+
+    /**
+     * Locates a record by its UUID
+     *
+     * @return position of the record, or -1 if there's no such record of this kind
+     */
+    private long locate(UUID uuid, byte kind) {
+        if (!bloomFilter.mightContain(uuid)) {
+            return -1;
+        }
+        long position = uuidIndex.get(uuid);
+        if (position < 0 || position >= end) {
+            return -1;
+        }
+        ByteBuffer buffer = buffer(position);
+        buffer.position(buffer.position() + 8);
+        if ((byte) (buffer.get() & ~END) != kind) {
+            return -1;
+        }
+        int hashLength = buffer.get();
+        buffer.position(buffer.position() + hashLength);
+        if (buffer.getLong() != uuid.getMostSignificantBits() || buffer.getLong() != uuid.getLeastSignificantBits()) {
+            return -1;
+        }
+        return position;
+    }
+
+    @Override
+    public boolean containsEvent(UUID uuid) {
+        return locate(uuid, EVENT) >= 0;
+    }
+
+    @Override
+    public boolean containsCommand(UUID uuid) {
+        return locate(uuid, COMMAND) >= 0;
+    }
+
+    @Override
+    public Optional<Event> findEvent(UUID uuid) {
+        long position = locate(uuid, EVENT);
+        if (position < 0) {
+            return Optional.empty();
+        }
+        return Optional.of((Event) new Record(position).read(null));
+    }
+
+    @Override
+    public Optional<Command> findCommand(UUID uuid) {
+        long position = locate(uuid, COMMAND);
+        if (position < 0) {
+            return Optional.empty();
+        }
+        return Optional.of((Command) new Record(position).read(null));
+    }
+
+    @Override
+    public Iterator<Event> eventIterator(Class<? extends Event> klass) {
+        return iterator(EVENT, klass);
+    }
+
+    @Override
+    public Iterator<Command> commandIterator(Class<? extends Command> klass) {
+        return iterator(COMMAND, klass);
+    }
+
+    /**
+     * Splits at segment and record boundaries, and is {@link Spliterator#SIZED} until split
+     */
+    @Override
+    public Spliterator<Event> eventSpliterator(Class<? extends Event> klass) {
+        return spliterator(EVENT, klass);
+    }
+
+    /**
+     * Splits at segment and record boundaries, and is {@link Spliterator#SIZED} until split
+     */
+    @Override
+    public Spliterator<Command> commandSpliterator(Class<? extends Command> klass) {
+        return spliterator(COMMAND, klass);
+    }
+
+    private <T extends Serializable> Spliterator<T> spliterator(byte kind, Class<? extends T> klass) {
+        if (!unresolvedCounts.isEmpty()) {
+            resolveCounts();
+        }
+        synchronized (endLock) {
+            return new SegmentSpliterator<>(0, end, filter(kind, klass), counters.count(klass), true);
+        }
+    }
+
+    /**
+     * Iterates over records between two positions that match the filter, splitting
+     * the range in halves at segment boundaries, which records never span, and ranges
+     * within a single segment in halves at record boundaries, found in the segment's
+     * {@link SegmentIndex}.
+     */
+    private class SegmentSpliterator<T extends Serializable> implements Spliterator<T> {
+        private long from;
+        private final long to;
+        private final Predicate<Record> filter;
+        private long estimate;
+        private boolean exact;
+        private Iterator<T> iterator;
+
+        /**
+         * @param estimate estimated number of matching records in the range
+         * @param exact whether the estimate is the exact number of matching records
+         */
+        SegmentSpliterator(long from, long to, Predicate<Record> filter, long estimate, boolean exact) {
+            this.from = from;
+            this.to = to;
+            this.filter = filter;
+            this.estimate = estimate;
+            this.exact = exact;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (iterator == null) {
+                iterator = iterator(from, to, filter);
+            }
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            action.accept(iterator.next());
+            return true;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (iterator != null || to <= from) {
+                return null;
+            }
+            long middle = middle();
+            if (middle <= from || middle >= to) {
+                return null;
+            }
+            long prefixEstimate = (long) ((double) estimate * (middle - from) / (to - from));
+            Spliterator<T> prefix = new SegmentSpliterator<>(from, middle, filter, prefixEstimate, false);
+            from = middle;
+            estimate -= prefixEstimate;
+            exact = false;
+            return prefix;
+        }
+
+        /**
+         * @return position of a segment or a record in the middle of the range
+         */
+        private long middle() {
+            long first = from / segmentSize;
+            long last = (to - 1) / segmentSize;
+            if (last > first) {
+                return (first + last + 1) / 2 * segmentSize;
+            }
+            long start = first * segmentSize;
+            SegmentIndex index = segmentIndex(start);
+            int low = index.search((int) (from - start));
+            int high = index.search((int) (to - start));
+            if (high - low < 2) {
+                return from;
+            }
+            return start + index.offset((low + high) >>> 1);
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE | (exact ? SIZED : 0);
+        }
+    }
+
+    @Override
+    public Iterator<Event> eventsBetween(TimeStamp from, TimeStamp to, Class<? extends Event> klass) {
+        return iterator(from, to, filter(EVENT, klass));
+    }
+
+    @Override
+    public Iterator<Command> commandsBetween(TimeStamp from, TimeStamp to, Class<? extends Command> klass) {
+        return iterator(from, to, filter(COMMAND, klass));
+    }
+
+    @Override
+    public Stream<Event> events(Command command) {
+        long position = locate(command.uuid(), COMMAND);
+        if (position < 0) {
+            return Stream.empty();
+        }
+        RecordIterator records = new RecordIterator(new Record(position).next);
+        List<Event> events = new ArrayList<>();
+        while (records.hasNext()) {
+            Record record = records.next();
+            if (record.kind != EVENT || !record.commandUuid().equals(command.uuid())) {
+                break;
+            }
+            events.add((Event) record.read(command));
+        }
+        return events.stream();
+    }
+}
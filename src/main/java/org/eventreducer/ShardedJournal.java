@@ -0,0 +1,311 @@
+package org.eventreducer;
+
+import com.google.common.collect.Iterators;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Longs;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import org.apache.commons.net.ntp.TimeStamp;
+import org.eventreducer.hlc.HybridTimestamp;
+import org.eventreducer.hlc.PhysicalTimeProvider;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Journal that partitions commands across a number of journals (shards), so that
+ * publishers of commands in different shards don't contend, and each shard can
+ * be stored separately (for example, {@link FileJournal}s on different disks).
+ *
+ * A command and its events are journalled into the same shard, picked by a consistent hash
+ * of the command's UUID, or of a {@link #shardKey(Function) shard key}. Shards timestamp records
+ * with this journal's clock, so timestamps are ordered across shards. Lookups of commands go to their
+ * shard right away (unless there's a shard key); lookups of events probe shards with
+ * {@link Journal#containsEvent(UUID)}. Sizes are summed up and iteration is merged
+ * across shards, in parallel where possible.
+ *
+ * Positions aren't supported, since every shard has its own.
+ */
+public class ShardedJournal extends Journal {
+
+    @Getter @Accessors(fluent = true)
+    private final List<Journal> shards;
+
+    /**
+     * Shard key of commands, commands' UUIDs if null (default)
+     */
+    @Getter @Accessors(fluent = true)
+    private Function<Command, ?> shardKey;
+
+    public ShardedJournal(PhysicalTimeProvider physicalTimeProvider, List<? extends Journal> shards) {
+        super(physicalTimeProvider);
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.shards.forEach(shard -> shard.shareClock(this));
+    }
+
+    /**
+     * Routes commands by a key other than their UUID, for example to keep commands
+     * about the same entity in the same shard. Lookups of commands by UUID have to
+     * probe shards then.
+     *
+     * @param shardKey key function, its results have to have stable hash codes
+     * @return this journal
+     */
+    public ShardedJournal shardKey(Function<Command, ?> shardKey) {
+        this.shardKey = shardKey;
+        return this;
+    }
+
+    @Override
+    public Journal endpoint(Endpoint endpoint) {
+        shards.forEach(shard -> shard.endpoint(endpoint));
+        return super.endpoint(endpoint);
+    }
+
+    /**
+     * @return shard that command belongs to
+     */
+    public Journal shard(Command command) {
+        if (shardKey == null) {
+            return shard(command.uuid());
+        }
+        HashCode hashCode = Hashing.murmur3_128().hashInt(shardKey.apply(command).hashCode());
+        return shards.get(Hashing.consistentHash(hashCode, shards.size()));
+    }
+
+    /**
+     * @return shard of a command UUID, only meaningful without a shard key
+     */
+    private Journal shard(UUID uuid) {
+        HashCode hashCode = HashCode.fromBytes(Bytes.concat(Longs.toByteArray(uuid.getMostSignificantBits()), Longs.toByteArray(uuid.getLeastSignificantBits())));
+        return shards.get(Hashing.consistentHash(hashCode, shards.size()));
+    }
+
+    /**
+     * Saves the command in its shard, which timestamps it with this journal's clock and journals it
+     * while holding the shard's monitor, so that every shard journals records in timestamp order.
+     * Shards don't synchronize with each other, so commands of different shards are journalled
+     * concurrently.
+     */
+    @Override
+    public long save(Command command, Stream<Event> events) throws Exception {
+        Journal shard = shard(command);
+        synchronized (shard) {
+            return shard.save(command, events);
+        }
+    }
+
+    /**
+     * Journals already timestamped records into the command's shard
+     */
+    @Override
+    protected long journal(Command command, Stream<Event> events) {
+        Journal shard = shard(command);
+        synchronized (shard) {
+            return shard.journal(command, events);
+        }
+    }
+
+    @Override
+    protected boolean storesEventsAsGiven() {
+        return shards.stream().allMatch(Journal::storesEventsAsGiven);
+    }
+
+    @Override
+    protected boolean groupsFlushes() {
+        return shards.stream().allMatch(Journal::groupsFlushes);
+    }
+
+    /**
+     * Saves the command asynchronously in its shard, like {@link #save(Command, Stream)}
+     */
+    @Override
+    public CompletableFuture<Long> saveAsync(Command command, Stream<Event> events) {
+        Journal shard = shard(command);
+        synchronized (shard) {
+            return shard.saveAsync(command, events);
+        }
+    }
+
+    /**
+     * Flushes all shards in parallel
+     */
+    @Override
+    public void flush() throws Exception {
+        List<Exception> exceptions = Collections.synchronizedList(new ArrayList<>());
+        shards.parallelStream().forEach(shard -> {
+            try {
+                shard.flush();
+            } catch (Exception e) {
+                exceptions.add(e);
+            }
+        });
+        if (!exceptions.isEmpty()) {
+            throw exceptions.get(0);
+        }
+    }
+
+    @Override
+    public long size(Class<? extends Serializable> klass) {
+        return shards.parallelStream().mapToLong(shard -> shard.size(klass)).sum();
+    }
+
+    @Override
+    public Optional<Event> findEvent(UUID uuid) {
+        for (Journal shard : shards) {
+            if (shard.containsEvent(uuid)) {
+                return shard.findEvent(uuid);
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<Command> findCommand(UUID uuid) {
+        if (shardKey == null) {
+            return shard(uuid).findCommand(uuid);
+        }
+        for (Journal shard : shards) {
+            if (shard.containsCommand(uuid)) {
+                return shard.findCommand(uuid);
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public boolean containsEvent(UUID uuid) {
+        return shards.stream().anyMatch(shard -> shard.containsEvent(uuid));
+    }
+
+    @Override
+    public boolean containsCommand(UUID uuid) {
+        if (shardKey == null) {
+            return shard(uuid).containsCommand(uuid);
+        }
+        return shards.stream().anyMatch(shard -> shard.containsCommand(uuid));
+    }
+
+    @Override
+    public Stream<Event> events(Command command) {
+        return shard(command).events(command);
+    }
+
+    @Override
+    public Iterator<Event> eventIterator(Class<? extends Event> klass) {
+        return Iterators.concat(shards.stream().map(shard -> shard.eventIterator(klass)).iterator());
+    }
+
+    @Override
+    public Iterator<Command> commandIterator(Class<? extends Command> klass) {
+        return Iterators.concat(shards.stream().map(shard -> shard.commandIterator(klass)).iterator());
+    }
+
+    /**
+     * Splits across shards first, then within them
+     */
+    @Override
+    public Spliterator<Event> eventSpliterator(Class<? extends Event> klass) {
+        return new ShardSpliterator<>(shards.stream().map(shard -> shard.eventSpliterator(klass)).collect(Collectors.toList()));
+    }
+
+    /**
+     * Splits across shards first, then within them
+     */
+    @Override
+    public Spliterator<Command> commandSpliterator(Class<? extends Command> klass) {
+        return new ShardSpliterator<>(shards.stream().map(shard -> shard.commandSpliterator(klass)).collect(Collectors.toList()));
+    }
+
+    /**
+     * Merges shards' iterators in timestamp order
+     */
+    @Override
+    public Iterator<Event> eventsBetween(TimeStamp from, TimeStamp to, Class<? extends Event> klass) {
+        return Iterators.mergeSorted(shards.stream().map(shard -> shard.eventsBetween(from, to, klass)).collect(Collectors.toList()),
+                (e1, e2) -> HybridTimestamp.compare(e1.timestamp(), e2.timestamp()));
+    }
+
+    /**
+     * Merges shards' iterators in timestamp order
+     */
+    @Override
+    public Iterator<Command> commandsBetween(TimeStamp from, TimeStamp to, Class<? extends Command> klass) {
+        return Iterators.mergeSorted(shards.stream().map(shard -> shard.commandsBetween(from, to, klass)).collect(Collectors.toList()),
+                (c1, c2) -> HybridTimestamp.compare(c1.timestamp(), c2.timestamp()));
+    }
+
+    /**
+     * Iterates over shards' spliterators one after another, splitting the list of shards
+     * in halves, and a single shard's spliterator by its own means
+     */
+    private static class ShardSpliterator<T> implements Spliterator<T> {
+        private final List<Spliterator<T>> spliterators;
+        private int current;
+
+        ShardSpliterator(List<Spliterator<T>> spliterators) {
+            this.spliterators = spliterators;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (current < spliterators.size()) {
+                if (spliterators.get(current).tryAdvance(action)) {
+                    return true;
+                }
+                current++;
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            for (; current < spliterators.size(); current++) {
+                spliterators.get(current).forEachRemaining(action);
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int remaining = spliterators.size() - current;
+            if (remaining > 1) {
+                int middle = current + remaining / 2;
+                Spliterator<T> prefix = new ShardSpliterator<>(new ArrayList<>(spliterators.subList(current, middle)));
+                current = middle;
+                return prefix;
+            }
+            return remaining == 1 ? spliterators.get(current).trySplit() : null;
+        }
+
+        @Override
+        public long estimateSize() {
+            long size = 0;
+            for (int i = current; i < spliterators.size(); i++) {
+                size += spliterators.get(i).estimateSize();
+                if (size < 0) {
+                    return Long.MAX_VALUE;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            int characteristics = NONNULL | SIZED | SUBSIZED;
+            for (int i = current; i < spliterators.size(); i++) {
+                characteristics &= spliterators.get(i).characteristics();
+            }
+            return characteristics;
+        }
+    }
+
+}
@@ -16,20 +16,26 @@ import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 import org.javatuples.Triplet;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadFactory;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @Slf4j
 public class SinglePublisherService<T, C extends Command<T>> extends AbstractService implements PublisherService<T, C> {
 
     private final Class<? extends Command> commandClass;
+    private final PublisherConfiguration configuration;
     @Setter
     private Endpoint endpoint;
 
@@ -57,54 +63,164 @@ public class SinglePublisherService<T, C extends Command<T>> extends AbstractSer
         @Getter @Setter
         private Consumer<Throwable> exceptionHandler;
         /**
-         * EventEnvelopes extracted from command events
+         * Events extracted from the command, produced in full by the extraction stage
          */
         @Getter @Setter
-        private Stream<Event> events;
+        private List<Event> events;
+
+        /**
+         * Completes once the command is journalled
+         */
+        @Getter @Setter
+        private CompletableFuture<Long> journalled;
 
         @Getter @Setter
         private long eventsJournalled = -1;
+
+        /**
+         * Token of the index factory, see {@link IndexFactory#journalling()}
+         */
+        @Getter @Setter
+        private long indexToken = -1;
+
+        /**
+         * Events as stamped and journalled, reused from command to command
+         */
+        @Getter
+        private final List<Event> journalledEvents = new ArrayList<>();
     }
 
+    /**
+     * Default ring buffer size, see {@link PublisherConfiguration}
+     */
     public static final int RING_BUFFER_SIZE = 1024;
     private RingBuffer<CommandEvent> ringBuffer;
     private Disruptor<CommandEvent> disruptor;
+    /**
+     * Completes once the current batch of commands is flushed, for journals that don't
+     * group flushes themselves (see {@link Journal#groupsFlushes()}). Only accessed
+     * by the journalling handler.
+     */
+    private CompletableFuture<Void> batchFlushed = new CompletableFuture<>();
+    private boolean batchUnflushed;
 
     private void extractEvents(CommandEvent event, long sequence, boolean endOfBatch) throws Exception {
         try {
-            event.events(event.command().events(endpoint));
+            // streams are lazy, so events are produced here rather than while journalling
+            event.events(event.command().events(endpoint).collect(Collectors.toList()));
         } catch (Exception e) {
             e.printStackTrace();
             throw new EventExtractionException(e, event.command());
         }
     }
 
+    /**
+     * Creates event extraction handlers, as many as configured. Every handler
+     * extracts events of its own stripe of sequences, so that commands get extracted
+     * in parallel while the next stages still consume them in order.
+     */
+    private EventHandler<CommandEvent>[] extractors() {
+        int stripes = configuration.extractors();
+        EventHandler<CommandEvent>[] extractors = new EventHandler[stripes];
+        if (stripes == 1) {
+            extractors[0] = this::extractEvents;
+            return extractors;
+        }
+        for (int i = 0; i < stripes; i++) {
+            int stripe = i;
+            extractors[i] = (event, sequence, endOfBatch) -> {
+                if (sequence % stripes == stripe) {
+                    extractEvents(event, sequence, endOfBatch);
+                }
+            };
+        }
+        return extractors;
+    }
+
+    /**
+     * Hands the command over to the journal without waiting for it to become durable,
+     * so journalling of the next commands overlaps with the journal's I/O. Journals that
+     * don't group flushes themselves are flushed once at the end of every batch instead.
+     */
     private void journal(CommandEvent event, long sequence, boolean endOfBatch) throws Exception {
+        Journal journal = endpoint.journal();
+        event.indexToken(endpoint.indexFactory().journalling());
+        Stream<Event> events = event.events() == null ? null : event.events().stream();
+        if (events != null && journal.storesEventsAsGiven()) {
+            events = events.peek(event.journalledEvents()::add);
+        }
         try {
-            event.eventsJournalled(endpoint.journal().save(event.command(), event.events()));
-        } catch (Exception e) {
-            throw new EventJournallingException(e, event.command());
+            if (journal.groupsFlushes()) {
+                event.journalled(journal.commit(event.command(), events));
+            } else {
+                long count = journal.save(event.command(), events);
+                batchUnflushed = true;
+                event.journalled(journal.replicated(batchFlushed.thenApply(flushed -> count)));
+            }
+        } catch (Throwable t) {
+            CompletableFuture<Long> failed = new CompletableFuture<>();
+            failed.completeExceptionally(t);
+            event.journalled(failed);
+        }
+        if (endOfBatch && batchUnflushed) {
+            CompletableFuture<Void> flushed = batchFlushed;
+            batchFlushed = new CompletableFuture<>();
+            batchUnflushed = false;
+            try {
+                journal.flush();
+                flushed.complete(null);
+            } catch (Throwable t) {
+                flushed.completeExceptionally(t);
+            }
         }
     }
 
+    /**
+     * Waits for the command to become durable. Since commands pass this stage in order,
+     * they get indexed and completed in the order they were published.
+     *
+     * If journalling fails, the command won't be completed and its exception handler
+     * gets invoked instead.
+     */
+    private void awaitJournalled(CommandEvent event) throws EventJournallingException {
+        try {
+            event.eventsJournalled(event.journalled().join());
+        } catch (CompletionException e) {
+            event.eventsJournalled(-1).events(null);
+            throw new EventJournallingException(e.getCause(), event.command());
+        }
+    }
+
+    /**
+     * Indexes the command and its events. Events are indexed as they were journalled, unless
+     * the journal doesn't store them as given (see {@link Journal#storesEventsAsGiven()}), in which
+     * case they are read back from the journal.
+     */
     private void index(CommandEvent event, long sequence, boolean endOfBatch) throws Exception {
-        if (event.eventsJournalled() != -1) {
-            Iterator<Event> iterator = endpoint.journal().events(event.command()).iterator();
-            while (iterator.hasNext()) {
-                Event e = iterator.next();
-                try {
-                    e.entitySerializer().index(endpoint.indexFactory(), e);
-                } catch (ClassNotFoundException | IllegalAccessException | InstantiationException e1) {
-                    log.error("Error while indexing", e);
+        try {
+            awaitJournalled(event);
+            if (event.eventsJournalled() != -1) {
+                Iterator<Event> iterator = endpoint.journal().storesEventsAsGiven() ?
+                        event.journalledEvents().iterator() : endpoint.journal().events(event.command()).iterator();
+                while (iterator.hasNext()) {
+                    Event e = iterator.next();
+                    try {
+                        e.entitySerializer().index(endpoint.indexFactory(), e);
+                    } catch (ClassNotFoundException | IllegalAccessException | InstantiationException e1) {
+                        log.error("Error while indexing", e);
+                    }
                 }
+                event.command().entitySerializer().index(endpoint.indexFactory(), event.command());
             }
-            event.command().entitySerializer().index(endpoint.indexFactory(), event.command());
+        } finally {
+            endpoint.indexFactory().indexed(event.indexToken());
         }
-
     }
 
 
     private void complete(CommandEvent event, long sequence, boolean endOfBatch) {
+        // don't hold on to events until the slot gets reused
+        event.journalledEvents().clear();
         if (event.events() != null) {
             event.completionHandler().accept(event.command().onCommandCompletion(endpoint, event.eventsJournalled()), event.eventsJournalled());
         }
@@ -112,10 +228,19 @@ public class SinglePublisherService<T, C extends Command<T>> extends AbstractSer
 
 
     private void translate(CommandEvent event, long sequence, Triplet<C, BiConsumer<Optional<T>, Long>, Consumer<Throwable>> message) {
+        translate(event, message.getValue0(), message.getValue1(), message.getValue2());
+    }
+
+    private void translate(CommandEvent event, C command, BiConsumer<Optional<T>, Long> completionHandler, Consumer<Throwable> exceptionHandler) {
         event.
-            command(message.getValue0()).
-            completionHandler(message.getValue1()).
-            exceptionHandler(message.getValue2());
+            command(command).
+            completionHandler(completionHandler).
+            exceptionHandler(exceptionHandler).
+            events(null).
+            journalled(null).
+            eventsJournalled(-1).
+            indexToken(-1).
+            journalledEvents().clear();
     }
 
     /**
@@ -129,26 +254,78 @@ public class SinglePublisherService<T, C extends Command<T>> extends AbstractSer
         ringBuffer.publishEvent(this::translate, Triplet.with(command, completionHandler, exceptionHandler));
     }
 
+    /**
+     * Publishes a Command to the disruptor, unless the ring buffer is full
+     * @param command Command to be published
+     * @param completionHandler Completion handler to be used once the command has been successfully processed
+     * @param exceptionHandler Exception handler to be used if an exception get thrown while processing the command
+     * @return <code>false</code> if the ring buffer is full
+     */
+    @Override
+    public boolean tryPublish(C command, BiConsumer<Optional<T>, Long> completionHandler, Consumer<Throwable> exceptionHandler) {
+        return ringBuffer.tryPublishEvent(this::translate, Triplet.with(command, completionHandler, exceptionHandler));
+    }
+
+    /**
+     * @return Number of free slots in the ring buffer
+     */
+    @Override
+    public long remainingCapacity() {
+        return ringBuffer.remainingCapacity();
+    }
+
+    /**
+     * Publishes a batch of Commands to the disruptor, claiming a range of sequences
+     * (up to the ring buffer size) at once and publishing them all together
+     * @param commands Commands to be published
+     * @return A completable future of all commands' results
+     */
+    @Override
+    public CompletableFuture<List<CommandPublished<T>>> publishAll(Collection<C> commands) {
+        // a snapshot, so that nothing can fail once the slots are claimed
+        Object[] snapshot = commands.toArray();
+        PublishedBatch<T> batch = new PublishedBatch<>(snapshot.length);
+        Consumer<Throwable> exceptionHandler = batch.exceptionHandler();
+        int index = 0;
+        while (index < snapshot.length) {
+            int n = Math.min(snapshot.length - index, ringBuffer.getBufferSize());
+            long hi = ringBuffer.next(n);
+            for (long sequence = hi - (n - 1); sequence <= hi; sequence++) {
+                translate(ringBuffer.get(sequence), (C) snapshot[index], batch.completionHandler(index), exceptionHandler);
+                index++;
+            }
+            ringBuffer.publish(hi - (n - 1), hi);
+        }
+        return batch.future();
+    }
+
     public SinglePublisherService(C command) {
+        this(command, PublisherConfiguration.of(command.getClass()));
+    }
+
+    public SinglePublisherService(C command, PublisherConfiguration configuration) {
         commandClass = command.getClass();
+        this.configuration = configuration;
     }
 
     @Override
     @SneakyThrows
     protected void doStart() {
-        log.debug("Starting single publisher {}", commandClass.getSimpleName());
+        log.debug("Starting single publisher {} (ring buffer size {}, {} producer, {} extractor(s))", commandClass.getSimpleName(),
+                configuration.ringBufferSize(), configuration.producerType(), configuration.extractors());
 
         ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("eventreducer-" + commandClass.getSimpleName() +"-%d").setDaemon(true).build();
 
-        disruptor = new Disruptor<>(CommandEvent::new, RING_BUFFER_SIZE, threadFactory);
+        disruptor = new Disruptor<>(CommandEvent::new, configuration.ringBufferSize(), threadFactory,
+                configuration.producerType(), configuration.waitStrategy().get());
         disruptor.setDefaultExceptionHandler(new CommandEventExceptionHandler());
 
         List<EventHandler<CommandEvent>> eventHandlers =
-                Arrays.asList(this::extractEvents, this::journal, this::index, this::complete);
+                Arrays.asList(this::journal, this::index, this::complete);
 
-        EventHandlerGroup<CommandEvent> handler = disruptor.handleEventsWith(eventHandlers.get(0));
+        EventHandlerGroup<CommandEvent> handler = disruptor.handleEventsWith(extractors());
 
-        for (EventHandler<CommandEvent> h : eventHandlers.subList(1, eventHandlers.size())) {
+        for (EventHandler<CommandEvent> h : eventHandlers) {
             handler = handler.then(h);
         }
 
@@ -0,0 +1,478 @@
+package org.eventreducer;
+
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.net.ntp.TimeStamp;
+import org.eventreducer.hlc.HybridTimestamp;
+import org.eventreducer.hlc.PhysicalTimeProvider;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Journal that keeps recently journalled commands and their events on the heap (hot tier),
+ * for the lookup latency of {@link MemoryJournal}, and stores all of them in a
+ * {@link SegmentedJournal} (cold tier), typically a {@link FileJournal} in group commit mode.
+ *
+ * Commands are journalled to the hot tier only. A background thread migrates them to
+ * the cold tier in journal order, and then evicts the oldest migrated commands from the heap
+ * once the hot tier holds more than {@link #hotRecords()} records or {@link #hotBytes()}
+ * serialized bytes. Lookups and iteration span both tiers.
+ *
+ * Records become durable once migrated: {@link #flush()} waits for that, and
+ * {@link #saveAsync(Command, Stream)} completes then. Positions are the cold tier's:
+ * {@link #position()} only advances as records are migrated, so it lags behind journalled
+ * commands, and {@link #iterator(long, long)} and subscriptions only see migrated records.
+ *
+ * The cold tier shares this journal's clock and keeps the timestamps records got here.
+ * Nothing but this journal should journal into it.
+ *
+ * If migration fails, journalling is rejected, {@link #flush()} fails, and migration is retried
+ * every {@link #RETRY_DELAY} milliseconds until it succeeds. Futures of the commands not yet
+ * durable stay pending meanwhile, as these commands are still migrated by the retry.
+ */
+@Slf4j
+public class TieredJournal extends Journal implements Closeable {
+
+    public static final long DEFAULT_HOT_RECORDS = 100_000;
+
+    /**
+     * Number of commands migrated before the cold tier gets flushed
+     */
+    private static final int MIGRATION_BATCH = 1024;
+
+    /**
+     * Milliseconds between attempts to migrate commands after a failure
+     */
+    static final long RETRY_DELAY = 1000;
+
+    /**
+     * Maximum number of commands and events kept on the heap once migrated, 100000 by default
+     */
+    @Getter @Setter @Accessors(fluent = true)
+    private volatile long hotRecords = DEFAULT_HOT_RECORDS;
+
+    /**
+     * Maximum serialized size of commands and events kept on the heap once migrated, unlimited by default
+     */
+    @Getter @Setter @Accessors(fluent = true)
+    private volatile long hotBytes = Long.MAX_VALUE;
+
+    /**
+     * Cold tier
+     */
+    @Getter @Accessors(fluent = true)
+    private final SegmentedJournal cold;
+
+    /**
+     * A command with its events in the hot tier
+     */
+    private static class HotCommand {
+        private final Command command;
+        private final List<Event> events;
+        private final long bytes;
+        /**
+         * Completed with the number of events once migrated and flushed, or exceptionally
+         * if the journal got closed before that
+         */
+        private final CompletableFuture<Long> durable = new CompletableFuture<>();
+        /**
+         * Whether the command is migrated and flushed, and so can be evicted
+         */
+        private volatile boolean migrated;
+
+        HotCommand(Command command, List<Event> events, long bytes) {
+            this.command = command;
+            this.events = events;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Map<UUID, HotCommand> commands = new ConcurrentHashMap<>();
+    private final Map<UUID, Event> events = new ConcurrentHashMap<>();
+    /**
+     * Hot commands in journal order
+     */
+    private final Queue<HotCommand> hot = new ConcurrentLinkedQueue<>();
+    /**
+     * Hot commands not yet migrated, in journal order
+     */
+    private final Queue<HotCommand> unmigrated = new ConcurrentLinkedQueue<>();
+    /**
+     * Commands migrated to the cold tier, but not flushed yet. Accessed by the migrating thread only.
+     */
+    private final List<HotCommand> unflushed = new ArrayList<>();
+    private final ClassCounters unmigratedCounters = new ClassCounters();
+    private final AtomicLong hotRecordCount = new AtomicLong();
+    private final AtomicLong hotByteCount = new AtomicLong();
+    private volatile HotCommand lastJournalled;
+    private volatile Throwable failure;
+
+    /**
+     * Guards moving commands from {@link #unmigrated} to the cold tier, so that
+     * readers see every command in exactly one of them
+     */
+    private final Object migrationLock = new Object();
+    private final AtomicBoolean migrationScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService migrator = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("journal-migrator-%d").setDaemon(true).build());
+
+    public TieredJournal(PhysicalTimeProvider physicalTimeProvider, SegmentedJournal cold) {
+        super(physicalTimeProvider);
+        this.cold = cold;
+        cold.shareClock(this);
+    }
+
+    @Override
+    public Journal endpoint(Endpoint endpoint) {
+        cold.endpoint(endpoint);
+        return super.endpoint(endpoint);
+    }
+
+    /**
+     * Hot records are the given ones, but they end up in the cold tier
+     */
+    @Override
+    protected boolean storesEventsAsGiven() {
+        return cold.storesEventsAsGiven();
+    }
+
+    /**
+     * Commands become durable as they are migrated, in batches
+     */
+    @Override
+    protected boolean groupsFlushes() {
+        return true;
+    }
+
+    @Override
+    protected synchronized long journal(Command command, Stream<Event> events) {
+        if (failure != null) {
+            throw new IllegalStateException("Migration to the cold tier failed", failure);
+        }
+        List<Event> journalled = events.collect(Collectors.toList());
+        long bytes = size(command);
+        for (Event event : journalled) {
+            bytes += size(event);
+        }
+        HotCommand hotCommand = new HotCommand(command, journalled, bytes);
+
+        this.commands.put(command.uuid(), hotCommand);
+        unmigratedCounters.increment(command.getClass());
+        for (Event event : journalled) {
+            this.events.put(event.uuid(), event);
+            unmigratedCounters.increment(event.getClass());
+        }
+        hotRecordCount.addAndGet(1 + journalled.size());
+        hotByteCount.addAndGet(bytes);
+        hot.add(hotCommand);
+        unmigrated.add(hotCommand);
+        lastJournalled = hotCommand;
+
+        if (migrationScheduled.compareAndSet(false, true)) {
+            migrator.execute(this::migrate);
+        }
+        return journalled.size();
+    }
+
+    @SneakyThrows
+    private static long size(Serializable o) {
+        return o.entitySerializer().size(o);
+    }
+
+    /**
+     * Migrates unmigrated commands to the cold tier, flushes it and evicts commands
+     * beyond the hot window
+     */
+    private void migrate() {
+        migrationScheduled.set(false);
+        try {
+            HotCommand command;
+            while (unflushed.size() < MIGRATION_BATCH && (command = unmigrated.peek()) != null) {
+                synchronized (migrationLock) {
+                    cold.saveStamped(command.command, command.events.stream());
+                    unmigrated.poll();
+                    unmigratedCounters.add(command.command.getClass(), -1);
+                    for (Event event : command.events) {
+                        unmigratedCounters.add(event.getClass(), -1);
+                    }
+                }
+                unflushed.add(command);
+            }
+            if (unflushed.isEmpty()) {
+                return;
+            }
+            cold.flush();
+        } catch (Throwable t) {
+            log.error("Error while migrating commands to the cold tier, retrying in " + RETRY_DELAY + "ms", t);
+            // commands migrated before the failure stay in the cold tier, and become durable
+            // once a retry flushes it, along with the rest
+            failure = t;
+            if (!migrator.isShutdown() && migrationScheduled.compareAndSet(false, true)) {
+                migrator.schedule(this::migrate, RETRY_DELAY, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        if (failure != null) {
+            log.info("Migration to the cold tier recovered");
+            failure = null;
+        }
+        unflushed.forEach(command -> {
+            command.migrated = true;
+            command.durable.complete((long) command.events.size());
+        });
+        unflushed.clear();
+        signalSubscriptions();
+        evict();
+        if (!unmigrated.isEmpty() && !migrator.isShutdown() && migrationScheduled.compareAndSet(false, true)) {
+            migrator.execute(this::migrate);
+        }
+    }
+
+    /**
+     * Removes the oldest migrated commands from the heap while the hot tier exceeds its window
+     */
+    private void evict() {
+        HotCommand command;
+        while ((hotRecordCount.get() > hotRecords || hotByteCount.get() > hotBytes) &&
+               (command = hot.peek()) != null && command.migrated) {
+            hot.poll();
+            commands.remove(command.command.uuid());
+            command.events.forEach(event -> events.remove(event.uuid()));
+            hotRecordCount.addAndGet(-1 - command.events.size());
+            hotByteCount.addAndGet(-command.bytes);
+        }
+    }
+
+    /**
+     * Timestamps and journals the command while holding this journal's monitor,
+     * so that commands are migrated in timestamp order
+     */
+    @Override
+    public synchronized long save(Command command, Stream<Event> events) throws Exception {
+        return super.save(command, events);
+    }
+
+    /**
+     * Completes once the command is migrated to the cold tier and flushed
+     */
+    @Override
+    public CompletableFuture<Long> saveAsync(Command command, Stream<Event> events) {
+        synchronized (this) {
+            HotCommand previous = lastJournalled;
+            try {
+                save(command, events);
+            } catch (Exception e) {
+                CompletableFuture<Long> future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+                return future;
+            }
+            HotCommand journalled = lastJournalled;
+            return journalled == previous ? CompletableFuture.completedFuture(0L) : journalled.durable;
+        }
+    }
+
+    /**
+     * Waits until everything journalled so far is migrated to the cold tier and flushed
+     *
+     * @throws IOException if migration failed, and hasn't been retried successfully yet
+     */
+    @Override
+    public void flush() throws Exception {
+        HotCommand last = lastJournalled;
+        while (last != null && !last.migrated) {
+            Throwable failure = this.failure;
+            if (failure != null) {
+                throw new IOException("Migration to the cold tier failed", failure);
+            }
+            try {
+                last.durable.get(RETRY_DELAY, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // check for failures again
+            } catch (ExecutionException e) {
+                throw new IOException("Migration to the cold tier failed", e.getCause());
+            }
+        }
+    }
+
+    @Override
+    public long size(Class<? extends Serializable> klass) {
+        synchronized (migrationLock) {
+            return cold.size(klass) + unmigratedCounters.count(klass);
+        }
+    }
+
+    @Override
+    public Optional<Event> findEvent(UUID uuid) {
+        Event event = events.get(uuid);
+        return event != null ? Optional.of(event) : cold.findEvent(uuid);
+    }
+
+    @Override
+    public Optional<Command> findCommand(UUID uuid) {
+        HotCommand command = commands.get(uuid);
+        return command != null ? Optional.of(command.command) : cold.findCommand(uuid);
+    }
+
+    @Override
+    public boolean containsEvent(UUID uuid) {
+        return events.containsKey(uuid) || cold.containsEvent(uuid);
+    }
+
+    @Override
+    public boolean containsCommand(UUID uuid) {
+        return commands.containsKey(uuid) || cold.containsCommand(uuid);
+    }
+
+    @Override
+    public Stream<Event> events(Command command) {
+        HotCommand hotCommand = commands.get(command.uuid());
+        return hotCommand != null ? hotCommand.events.stream() : cold.events(command);
+    }
+
+    @Override
+    public Iterator<Event> eventIterator(Class<? extends Event> klass) {
+        synchronized (migrationLock) {
+            return Iterators.concat(cold.eventIterator(klass), unmigratedEvents().
+                    filter(e -> klass.isAssignableFrom(e.getClass())).iterator());
+        }
+    }
+
+    @Override
+    public Iterator<Command> commandIterator(Class<? extends Command> klass) {
+        synchronized (migrationLock) {
+            return Iterators.concat(cold.commandIterator(klass), unmigratedCommands().
+                    filter(c -> klass.isAssignableFrom(c.getClass())).iterator());
+        }
+    }
+
+    /**
+     * Unmigrated records are newer than migrated ones, so they follow them in timestamp order, too
+     */
+    @Override
+    public Iterator<Event> eventsBetween(TimeStamp from, TimeStamp to, Class<? extends Event> klass) {
+        synchronized (migrationLock) {
+            return Iterators.concat(cold.eventsBetween(from, migratedBefore(from, to), klass), unmigratedEvents().
+                    filter(e -> klass.isAssignableFrom(e.getClass()) && within(e.timestamp(), from, to)).iterator());
+        }
+    }
+
+    @Override
+    public Iterator<Command> commandsBetween(TimeStamp from, TimeStamp to, Class<? extends Command> klass) {
+        synchronized (migrationLock) {
+            return Iterators.concat(cold.commandsBetween(from, migratedBefore(from, to), klass), unmigratedCommands().
+                    filter(c -> klass.isAssignableFrom(c.getClass()) && within(c.timestamp(), from, to)).iterator());
+        }
+    }
+
+    /**
+     * Caps an upper bound at the timestamp of the first unmigrated command (but not below
+     * the lower bound), as the cold tier's timestamp range iterators may reflect records
+     * migrated after their creation.
+     * Invoked while holding {@link #migrationLock}.
+     */
+    private TimeStamp migratedBefore(TimeStamp from, TimeStamp to) {
+        HotCommand first = unmigrated.peek();
+        if (first == null || HybridTimestamp.compare(first.command.timestamp(), to) >= 0) {
+            return to;
+        }
+        return HybridTimestamp.compare(first.command.timestamp(), from) < 0 ? from : first.command.timestamp();
+    }
+
+    private static boolean within(TimeStamp timestamp, TimeStamp from, TimeStamp to) {
+        return HybridTimestamp.compare(timestamp, from) >= 0 && HybridTimestamp.compare(timestamp, to) < 0;
+    }
+
+    /**
+     * Snapshot of unmigrated commands, taken while holding {@link #migrationLock}
+     */
+    private Stream<Command> unmigratedCommands() {
+        return new ArrayList<>(unmigrated).stream().map(command -> command.command);
+    }
+
+    private Stream<Event> unmigratedEvents() {
+        return new ArrayList<>(unmigrated).stream().flatMap(command -> command.events.stream());
+    }
+
+    /**
+     * Returns the cold tier's position, which only includes migrated records
+     */
+    @Override
+    public long position() {
+        return cold.position();
+    }
+
+    @Override
+    public long durablePosition() {
+        return cold.durablePosition();
+    }
+
+    /**
+     * Standbys replicate the cold tier
+     */
+    @Override
+    ReplicationServer synchronousReplication() {
+        return cold.synchronousReplication();
+    }
+
+    @Override
+    public JournalIterator<Serializable> iterator(long from, long to) {
+        return cold.iterator(from, to);
+    }
+
+    /**
+     * Exports the cold tier once everything journalled so far is migrated to it
+     */
+    @Override
+    @SneakyThrows
+    public void exportTo(WritableByteChannel target) throws IOException {
+        flush();
+        cold.exportTo(target);
+    }
+
+    @Override
+    public synchronized void importFrom(ReadableByteChannel source) throws IOException {
+        if (lastJournalled != null) {
+            throw new IllegalStateException("Can't import into a non-empty journal");
+        }
+        cold.importFrom(source);
+    }
+
+    /**
+     * Migrates everything journalled so far and closes the cold tier if it is closeable
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        migrator.shutdown();
+        try {
+            migrator.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while ((!unmigrated.isEmpty() || !unflushed.isEmpty()) && failure == null) {
+            migrate();
+        }
+        if (failure != null) {
+            log.error("Closing with {} command(s) not migrated to the cold tier", unmigrated.size() + unflushed.size());
+            Throwable failure = this.failure;
+            hot.stream().filter(command -> !command.migrated).forEach(command -> command.durable.completeExceptionally(failure));
+        }
+        if (cold instanceof Closeable) {
+            ((Closeable) cold).close();
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package org.eventreducer;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Maps UUIDs of journalled records to their positions (see {@link SegmentedJournal}).
+ *
+ * An index may contain stale entries (for example, for records discarded by recovery),
+ * so positions it returns have to be checked against the record found there.
+ */
+interface UUIDIndex {
+
+    /**
+     * @return position of the record, or -1 if there's none
+     */
+    long get(UUID uuid);
+
+    void put(UUID uuid, long position);
+
+    /**
+     * @return position up to which all records are known to be in the index
+     */
+    long position();
+
+    void forEach(Consumer<UUID> consumer);
+
+}
@@ -0,0 +1,40 @@
+package org.eventreducer.annotations;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.dsl.ProducerType;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Tunes the publisher of a command class. Overridden by
+ * {@link org.eventreducer.Endpoint.EndpointBuilder#publisherConfiguration(Class, org.eventreducer.PublisherConfiguration)}.
+ *
+ * @see org.eventreducer.PublisherConfiguration
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Publishing {
+    /**
+     * Ring buffer size, has to be a power of 2
+     */
+    int ringBufferSize() default 1024;
+
+    /**
+     * Wait strategy, has to have a public no-argument constructor
+     */
+    Class<? extends WaitStrategy> waitStrategy() default BlockingWaitStrategy.class;
+
+    /**
+     * {@link ProducerType#SINGLE} is only safe if commands of this class are always published from the same thread
+     */
+    ProducerType producerType() default ProducerType.MULTI;
+
+    /**
+     * Number of threads extracting events concurrently, see {@link org.eventreducer.PublisherConfiguration#extractors()}
+     */
+    int extractors() default 1;
+}
@@ -0,0 +1,473 @@
+package org.eventreducer;
+
+import lombok.SneakyThrows;
+import org.apache.commons.net.ntp.TimeStamp;
+import org.eventreducer.annotations.Property;
+import org.eventreducer.hlc.NTPServerTimeProvider;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class FileJournalTest {
+
+    public static class FileJournalTestCommand extends Command<Void> {
+        @Property
+        public String value;
+
+        @Override
+        public Stream<Event> events(Endpoint endpoint) throws Exception {
+            FileJournalTestEvent event1 = new FileJournalTestEvent();
+            event1.value = value;
+            FileJournalTestEvent event2 = new FileJournalTestEvent();
+            event2.value = value + "!";
+            return Stream.of(event1, event2);
+        }
+    }
+
+    public static class FileJournalTestEvent extends Event {
+        @Property
+        public String value;
+    }
+
+    private NTPServerTimeProvider physicalTimeProvider;
+    private Endpoint endpoint;
+    private File directory;
+    private FileJournal journal;
+
+    @Before
+    @SneakyThrows
+    public void setup() {
+        physicalTimeProvider = new NTPServerTimeProvider();
+        physicalTimeProvider.startAsync().awaitRunning();
+        endpoint = Endpoint.builder().packagePrefix("org.eventreducer").journal(new MemoryJournal(physicalTimeProvider)).
+                indexFactory(new MemoryIndexFactory()).lockFactory(new MemoryLockFactory()).build();
+        directory = Files.createTempDirectory("eventreducer").toFile();
+        journal = open();
+    }
+
+    @After
+    @SneakyThrows
+    public void teardown() {
+        journal.close();
+    }
+
+    @SneakyThrows
+    private FileJournal open() {
+        FileJournal journal = new FileJournal(physicalTimeProvider, directory, 4096);
+        journal.endpoint(endpoint);
+        return journal;
+    }
+
+    @SneakyThrows
+    private List<FileJournalTestCommand> save(int count) {
+        List<FileJournalTestCommand> commands = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            FileJournalTestCommand command = new FileJournalTestCommand();
+            command.value = "command " + i;
+            journal.save(command, command.events(endpoint));
+            commands.add(command);
+        }
+        return commands;
+    }
+
+    @SneakyThrows
+    private void restart() {
+        journal.close();
+        journal = open();
+    }
+
+    @Test
+    @SneakyThrows
+    public void reopen() {
+        List<FileJournalTestCommand> commands = save(100);
+        long position = journal.position();
+        restart();
+
+        assertEquals(position, journal.position());
+        assertEquals(100, journal.size(FileJournalTestCommand.class));
+        assertEquals(200, journal.size(FileJournalTestEvent.class));
+        for (FileJournalTestCommand command : commands) {
+            FileJournalTestCommand found = (FileJournalTestCommand) journal.findCommand(command.uuid()).get();
+            assertEquals(command.value, found.value);
+            assertEquals(command.timestamp(), found.timestamp());
+            assertEquals(command.value + "!", journal.events(command).
+                    map(e -> ((FileJournalTestEvent) e).value).sorted().collect(Collectors.toList()).get(1));
+        }
+        Iterator<Serializable> records = journal.iterator(0, journal.position());
+        for (FileJournalTestCommand command : commands) {
+            assertEquals(command.uuid(), ((Command) records.next()).uuid());
+            assertEquals(command.value, ((FileJournalTestEvent) records.next()).value);
+            assertEquals(command.value + "!", ((FileJournalTestEvent) records.next()).value);
+        }
+        assertFalse(records.hasNext());
+        List<Command> range = new ArrayList<>();
+        journal.commandsBetween(commands.get(10).timestamp(), commands.get(90).timestamp(), FileJournalTestCommand.class).
+                forEachRemaining(range::add);
+        assertEquals(commands.subList(10, 90).stream().map(Command::uuid).collect(Collectors.toList()),
+                range.stream().map(Command::uuid).collect(Collectors.toList()));
+
+        // appending continues where it stopped
+        FileJournalTestCommand command = save(1).get(0);
+        assertTrue(journal.position() > position);
+        assertTrue(journal.containsCommand(command.uuid()));
+    }
+
+    /**
+     * Saves commands, keeping a copy of a checkpoint written along the way,
+     * and returns positions right after every command
+     */
+    @SneakyThrows
+    private List<Long> saveWithEarlierCheckpoint(List<FileJournalTestCommand> commands, byte[][] checkpoint) {
+        List<Long> ends = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            commands.addAll(save(1));
+            // checkpoints are written as records are forced
+            journal.flush();
+            ends.add(journal.position());
+            if (i == 50) {
+                checkpoint[0] = Files.readAllBytes(new File(directory, "checkpoint").toPath());
+            }
+        }
+        return ends;
+    }
+
+    @SneakyThrows
+    private void write(long position, byte[] bytes) {
+        int segment = (int) (position / journal.segmentSize());
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, String.format("%010d.segment", segment)), "rw")) {
+            file.seek(position % journal.segmentSize());
+            file.write(bytes);
+        }
+    }
+
+    private void assertRecovered(List<FileJournalTestCommand> commands, int survivors, long end) {
+        assertEquals(end, journal.position());
+        assertEquals(survivors, journal.size(FileJournalTestCommand.class));
+        assertEquals(2 * survivors, journal.size(FileJournalTestEvent.class));
+        for (int i = 0; i < commands.size(); i++) {
+            FileJournalTestCommand command = commands.get(i);
+            assertEquals(i < survivors, journal.containsCommand(command.uuid()));
+            assertEquals(i < survivors ? 2 : 0, journal.events(command).count());
+        }
+        List<Command> range = new ArrayList<>();
+        journal.commandsBetween(commands.get(0).timestamp(), new TimeStamp(-1L), FileJournalTestCommand.class).
+                forEachRemaining(range::add);
+        assertEquals(survivors, range.size());
+        long records = 0;
+        for (Iterator<Serializable> iterator = journal.iterator(0, journal.position()); iterator.hasNext(); iterator.next()) {
+            records++;
+        }
+        assertEquals(3 * survivors, records);
+    }
+
+    @Test
+    @SneakyThrows
+    public void corruptedTail() {
+        List<FileJournalTestCommand> commands = new ArrayList<>();
+        byte[][] checkpoint = new byte[1][];
+        List<Long> ends = saveWithEarlierCheckpoint(commands, checkpoint);
+        journal.close();
+        // recovery starts at the earlier checkpoint, and finds the last byte of the last event corrupted
+        Files.write(new File(directory, "checkpoint").toPath(), checkpoint[0]);
+        write(ends.get(99) - 1, new byte[]{42});
+        journal = open();
+
+        assertRecovered(commands, 99, ends.get(98));
+        // journalling goes on after the last complete command, and survives another restart
+        FileJournalTestCommand command = save(1).get(0);
+        restart();
+        assertTrue(journal.containsCommand(command.uuid()));
+        assertEquals(100, journal.size(FileJournalTestCommand.class));
+    }
+
+    @Test
+    @SneakyThrows
+    public void incompleteCommand() {
+        List<FileJournalTestCommand> commands = new ArrayList<>();
+        byte[][] checkpoint = new byte[1][];
+        List<Long> ends = saveWithEarlierCheckpoint(commands, checkpoint);
+        // find the last event, which completes the last command
+        JournalIterator<Serializable> records = journal.iterator(ends.get(98), ends.get(99));
+        records.next();
+        records.next();
+        long last = journal.recordAt(records.position());
+        journal.close();
+        // the last event never made it to the storage device
+        Files.write(new File(directory, "checkpoint").toPath(), checkpoint[0]);
+        write(last, new byte[4]);
+        journal = open();
+
+        assertRecovered(commands, 99, ends.get(98));
+    }
+
+    @Test
+    @SneakyThrows
+    public void invalidCheckpoint() {
+        List<FileJournalTestCommand> commands = save(100);
+        long position = journal.position();
+        journal.close();
+        byte[] checkpoint = Files.readAllBytes(new File(directory, "checkpoint").toPath());
+        checkpoint[0] ^= 1;
+        Files.write(new File(directory, "checkpoint").toPath(), checkpoint);
+        journal = open();
+
+        // all records are read instead
+        assertRecovered(commands, 100, position);
+    }
+
+    /**
+     * @param mappings true to include memory mappings
+     * @return lines of /proc/self/fd (and /proc/self/maps) referring to files of the journal
+     */
+    @SneakyThrows
+    private List<String> openFiles(String suffix, boolean mappings) {
+        List<String> files = new ArrayList<>();
+        File[] descriptors = new File("/proc/self/fd").listFiles();
+        if (descriptors != null) {
+            for (File descriptor : descriptors) {
+                try {
+                    files.add(Files.readSymbolicLink(descriptor.toPath()).toString());
+                } catch (Exception e) {
+                    // closed in the meantime
+                }
+            }
+        }
+        if (mappings) {
+            files.addAll(Files.readAllLines(new File("/proc/self/maps").toPath()));
+        }
+        String path = directory.getCanonicalPath();
+        return files.stream().filter(f -> f.contains(path) && f.endsWith(suffix)).collect(Collectors.toList());
+    }
+
+    @Test
+    @SneakyThrows
+    public void mappedIndex() {
+        List<FileJournalTestCommand> commands = save(100);
+        long position = journal.position();
+        List<UUID> uuids = new ArrayList<>();
+        for (FileJournalTestCommand command : commands) {
+            uuids.add(command.uuid());
+            journal.events(command).forEach(event -> uuids.add(event.uuid()));
+        }
+        MappedUUIDIndex index = (MappedUUIDIndex) journal.uuidIndex;
+        journal.close();
+        try {
+            index.get(uuids.get(0));
+            fail("The index is usable after it's closed");
+        } catch (IllegalStateException e) {
+        }
+        journal = open();
+
+        // nothing is read into the index on recovery, all lookups go through the mapped file
+        assertEquals(position, journal.uuidIndex.position());
+        for (UUID uuid : uuids) {
+            assertTrue(journal.uuidIndex.get(uuid) >= 0);
+        }
+        for (FileJournalTestCommand command : commands) {
+            assertEquals(command.value, ((FileJournalTestCommand) journal.findCommand(command.uuid()).get()).value);
+        }
+        assertFalse(journal.containsCommand(UUID.randomUUID()));
+    }
+
+    @Test
+    @SneakyThrows
+    public void lostIndex() {
+        List<FileJournalTestCommand> commands = save(100);
+        journal.close();
+        assertTrue(new File(directory, "index").delete());
+        journal = open();
+
+        // records before the checkpoint are indexed again
+        assertEquals(journal.position(), journal.uuidIndex.position());
+        for (FileJournalTestCommand command : commands) {
+            assertEquals(command.value, ((FileJournalTestCommand) journal.findCommand(command.uuid()).get()).value);
+            assertEquals(2, journal.events(command).count());
+            assertTrue(journal.containsCommand(command.uuid()));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void indexResize() {
+        File file = new File(directory, "resized");
+        MappedUUIDIndex index = new MappedUUIDIndex(file);
+        List<UUID> uuids = new ArrayList<>();
+        int resizing = (int) MappedUUIDIndex.INITIAL_SLOTS / 2 + 1000;
+        for (int i = 0; i < resizing; i++) {
+            uuids.add(UUID.randomUUID());
+            index.put(uuids.get(i), i);
+        }
+        // entries of the previous table are found while they are migrated
+        assertTrue(new File(directory, "resized.resize." + MappedUUIDIndex.INITIAL_SLOTS * 2).exists());
+        for (int i = 0; i < resizing; i++) {
+            assertEquals(i, index.get(uuids.get(i)));
+        }
+        Set<UUID> all = new HashSet<>();
+        index.forEach(all::add);
+        assertEquals(new HashSet<>(uuids), all);
+        // the index file isn't replaced before migration is done
+        index.force(resizing);
+        index.close();
+        index = new MappedUUIDIndex(file);
+        assertEquals(0, index.position());
+        assertFalse(new File(directory, "resized.resize." + MappedUUIDIndex.INITIAL_SLOTS * 2).exists());
+
+        int migrated = (int) MappedUUIDIndex.INITIAL_SLOTS;
+        for (int i = 0; i < migrated; i++) {
+            if (i >= uuids.size()) {
+                uuids.add(UUID.randomUUID());
+            }
+            index.put(uuids.get(i), i);
+        }
+        index.force(migrated);
+        index.close();
+        index = new MappedUUIDIndex(file);
+        assertEquals(migrated, index.position());
+        assertEquals(64 + MappedUUIDIndex.INITIAL_SLOTS * 2 * 32, file.length());
+        for (int i = 0; i < migrated; i++) {
+            assertEquals(i, index.get(uuids.get(i)));
+        }
+        assertEquals(-1, index.get(UUID.randomUUID()));
+        index.close();
+    }
+
+    @Test
+    @SneakyThrows
+    public void closeReleasesFiles() {
+        Assume.assumeTrue(new File("/proc/self/maps").exists());
+        journal.compression(true);
+        List<FileJournalTestCommand> commands = save(100);
+        File first = new File(directory, String.format("%010d.segment", 0));
+        for (int i = 0; i < 100 && first.exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(first.exists());
+        assertFalse(openFiles("index", true).isEmpty());
+        assertFalse(openFiles(".zsegment", true).isEmpty());
+        // files of compressed segments are closed as soon as they are replaced
+        assertEquals(new ArrayList<>(), openFiles(".segment (deleted)", false));
+        journal.close();
+
+        assertEquals(new ArrayList<>(), openFiles("index", true));
+        assertEquals(new ArrayList<>(), openFiles(".zsegment", true));
+
+        journal = open();
+        for (FileJournalTestCommand command : commands) {
+            assertEquals(command.value, ((FileJournalTestCommand) journal.findCommand(command.uuid()).get()).value);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void compressionWaitsForCommit() {
+        List<FileJournalTestCommand> commands = save(100);
+        // records as a replica receives them, and the first command that
+        // continues in the next segment before its last record
+        List<Long> positions = new ArrayList<>();
+        List<ByteBuffer> records = new ArrayList<>();
+        int first = 0;
+        int spanning = -1;
+        int last = -1;
+        for (long position = 0; position < journal.position(); ) {
+            position = journal.recordAt(position);
+            ByteBuffer record = journal.rawRecord(position);
+            positions.add(position);
+            ByteBuffer copy = ByteBuffer.allocate(record.remaining());
+            copy.put(record.duplicate());
+            copy.flip();
+            records.add(copy);
+            position += record.remaining();
+            if ((record.get(record.position() + 8) & SegmentedJournal.END) != 0) {
+                if (spanning < 0 && positions.get(first) / 4096 < positions.get(records.size() - 2) / 4096) {
+                    spanning = first;
+                    last = records.size() - 1;
+                }
+                first = records.size();
+            }
+        }
+        assertTrue(spanning >= 0);
+        int segment = (int) (positions.get(spanning) / 4096);
+
+        File replicaDirectory = Files.createTempDirectory("eventreducer").toFile();
+        FileJournal replica = new FileJournal(physicalTimeProvider, replicaDirectory, 4096).compression(true);
+        replica.endpoint(endpoint);
+        // all of it but its last record
+        for (int i = 0; i < last; i++) {
+            replica.appendRecord(positions.get(i), records.get(i));
+        }
+        // the segment the incomplete command starts in isn't compressed
+        File segmentFile = new File(replicaDirectory, String.format("%010d.segment", segment));
+        Thread.sleep(500);
+        assertTrue(segmentFile.exists());
+
+        replica.discardIncomplete();
+        for (int i = spanning; i < records.size(); i++) {
+            replica.appendRecord(positions.get(i), records.get(i));
+        }
+        for (int j = 0; j < 100 && segmentFile.exists(); j++) {
+            Thread.sleep(50);
+        }
+        assertFalse(segmentFile.exists());
+        replica.close();
+
+        replica = new FileJournal(physicalTimeProvider, replicaDirectory, 4096);
+        replica.endpoint(endpoint);
+        for (FileJournalTestCommand command : commands) {
+            assertEquals(command.value, ((FileJournalTestCommand) replica.findCommand(command.uuid()).get()).value);
+        }
+        assertEquals(commands.size(), replica.size(FileJournalTestCommand.class));
+        replica.close();
+    }
+
+    @Test
+    @SneakyThrows
+    public void subscriptionWaitsForForce() {
+        journal.groupCommit(true);
+        BlockingQueue<Event> received = new LinkedBlockingQueue<>();
+        JournalSubscription subscription = journal.subscribe(new JournalSubscriber() {
+            @Override
+            public void onSubscribe(JournalSubscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Event event, long position) {
+                received.add(event);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+        });
+        FileJournalTestCommand command = save(1).get(0);
+
+        // journalled, but not forced yet
+        assertTrue(journal.durablePosition() < journal.position());
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        journal.flush();
+        assertEquals(journal.position(), journal.durablePosition());
+        assertEquals(command.value, ((FileJournalTestEvent) received.poll(10, TimeUnit.SECONDS)).value);
+        assertEquals(command.value + "!", ((FileJournalTestEvent) received.poll(10, TimeUnit.SECONDS)).value);
+        subscription.cancel();
+    }
+
+}
@@ -1,6 +1,9 @@
 package org.eventreducer;
 
 import lombok.SneakyThrows;
+import org.apache.commons.net.ntp.TimeStamp;
+import org.eventreducer.annotations.Property;
+import org.eventreducer.hlc.HybridTimestamp;
 import org.eventreducer.hlc.NTPServerTimeProvider;
 import org.junit.After;
 import org.junit.Before;
@@ -8,58 +11,654 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 @RunWith(Parameterized.class)
 public class JournalTest {
 
+    private static NTPServerTimeProvider physicalTimeProvider;
+
     @Parameterized.Parameters(name = "{index}: {0}")
     @SneakyThrows
     public static Collection<Journal> journals() {
-        NTPServerTimeProvider physicalTimeProvider = new NTPServerTimeProvider();
+        physicalTimeProvider = new NTPServerTimeProvider();
         physicalTimeProvider.startAsync().awaitRunning();
 
         MemoryJournal memoryJournal = new MemoryJournal(physicalTimeProvider);
-        Endpoint.builder().journal(memoryJournal).build();
+        FileJournal fileJournal = new FileJournal(physicalTimeProvider, Files.createTempDirectory("eventreducer").toFile(), 4096);
+        FileJournal compressedFileJournal = new FileJournal(physicalTimeProvider, Files.createTempDirectory("eventreducer").toFile(), 4096).
+                compression(true);
+        FileJournal groupCommitFileJournal = new FileJournal(physicalTimeProvider, Files.createTempDirectory("eventreducer").toFile(), 4096).
+                groupCommit(true);
+        OffHeapJournal offHeapJournal = new OffHeapJournal(physicalTimeProvider, 4096);
+        TieredJournal tieredJournal = new TieredJournal(physicalTimeProvider,
+                new FileJournal(physicalTimeProvider, Files.createTempDirectory("eventreducer").toFile(), 4096).groupCommit(true)).
+                hotRecords(10);
+
+        ShardedJournal shardedJournal = new ShardedJournal(physicalTimeProvider, Arrays.asList(
+                new MemoryJournal(physicalTimeProvider),
+                new FileJournal(physicalTimeProvider, Files.createTempDirectory("eventreducer").toFile(), 4096),
+                new OffHeapJournal(physicalTimeProvider, 4096)));
 
-        return Arrays.asList(memoryJournal);
+        return Arrays.asList(memoryJournal, fileJournal, compressedFileJournal, groupCommitFileJournal, offHeapJournal, tieredJournal,
+                shardedJournal);
     }
 
     @Parameterized.Parameter
     public Journal journal;
 
+    private Endpoint endpoint;
+
     @Before
     public void setup() {
-        journal.endpoint().startAsync().awaitRunning();
+        endpoint = Endpoint.builder().packagePrefix("org.eventreducer").journal(journal).
+                indexFactory(new MemoryIndexFactory()).lockFactory(new MemoryLockFactory()).build();
+        endpoint.startAsync().awaitRunning();
     }
 
     @After
     public void teardown() {
-        journal.endpoint().stopAsync().awaitTerminated();
+        endpoint.stopAsync().awaitTerminated();
     }
 
-    private static class TestCommand extends Command {
+    public static class JournalTestCommand extends Command<Void> {
+        @Property
+        public String value;
+
         @Override
         public Stream<Event> events(Endpoint endpoint) throws Exception {
-            return Stream.of(new TestEvent());
+            JournalTestEvent event1 = new JournalTestEvent();
+            event1.value = value;
+            JournalTestEvent event2 = new JournalTestEvent();
+            event2.value = value + "!";
+            return Stream.of(event1, event2);
         }
     }
 
-    private static class TestEvent extends Event {
+    public static class JournalTestEvent extends Event {
+        @Property
+        public String value;
     }
 
     @Test
     @SneakyThrows
     public void test() {
-        TestCommand command = new TestCommand();
-        assertEquals(0, journal.size(TestCommand.class));
+        JournalTestCommand command = new JournalTestCommand();
+        long size = journal.size(JournalTestCommand.class);
+        journal.save(command, command.events(journal.endpoint()));
+        assertEquals(size + 1, journal.size(JournalTestCommand.class));
+    }
+
+    @Test
+    @SneakyThrows
+    public void lookup() {
+        JournalTestCommand command = new JournalTestCommand();
+        command.value = "lookup";
+        assertEquals(2, journal.save(command, command.events(journal.endpoint())));
+
+        assertTrue(journal.containsCommand(command.uuid()));
+        assertFalse(journal.containsCommand(UUID.randomUUID()));
+        assertFalse(journal.findEvent(UUID.randomUUID()).isPresent());
+
+        Command found = journal.findCommand(command.uuid()).get();
+        assertEquals(command.uuid(), found.uuid());
+        assertEquals("lookup", ((JournalTestCommand) found).value);
+
+        List<Event> events = journal.events(command).collect(Collectors.toList());
+        assertEquals(2, events.size());
+        assertEquals(Arrays.asList("lookup", "lookup!"),
+                events.stream().map(e -> ((JournalTestEvent) e).value).sorted().collect(Collectors.toList()));
+
+        for (Event event : events) {
+            Event e = journal.findEvent(event.uuid()).get();
+            assertEquals(command.uuid(), e.command().uuid());
+            assertEquals(event.timestamp(), e.timestamp());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void saveAsync() {
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+        List<JournalTestCommand> commands = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            JournalTestCommand command = new JournalTestCommand();
+            command.value = "async " + i;
+            commands.add(command);
+            int n = i;
+            futures.add(journal.saveAsync(command, command.events(journal.endpoint())).whenComplete((count, t) -> completed.add(n)));
+        }
+        for (CompletableFuture<Long> future : futures) {
+            assertEquals(2L, (long) future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(IntStream.range(0, 100).boxed().collect(Collectors.toList()), completed);
+        for (JournalTestCommand command : commands) {
+            assertEquals(command.value, ((JournalTestCommand) journal.findCommand(command.uuid()).get()).value);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void failingEvents() {
+        long commands = journal.size(JournalTestCommand.class);
+        long events = journal.size(JournalTestEvent.class);
+        long position = supportsPositions() ? journal.position() : 0;
+        JournalTestCommand command = new JournalTestCommand();
+        command.value = "failing";
+        JournalTestEvent event = new JournalTestEvent();
+        try {
+            journal.save(command, Stream.<Event>of(event, new JournalTestEvent()).peek(e -> {
+                if (e != event) {
+                    throw new IllegalStateException("Extraction failed");
+                }
+            }));
+            fail("Extraction failure should have been propagated");
+        } catch (IllegalStateException e) {
+            assertEquals("Extraction failed", e.getMessage());
+        }
+        assertFalse(journal.containsCommand(command.uuid()));
+        assertFalse(journal.containsEvent(event.uuid()));
+        assertEquals(commands, journal.size(JournalTestCommand.class));
+        assertEquals(events, journal.size(JournalTestEvent.class));
+        if (supportsPositions()) {
+            assertEquals(position, journal.position());
+        }
+
+        // the journal remains usable
+        command = new JournalTestCommand();
+        command.value = "after failure";
+        assertEquals(2, journal.save(command, command.events(journal.endpoint())));
+        assertEquals(2, journal.events(command).count());
+    }
+
+    @Test
+    @SneakyThrows
+    public void segments() {
+        long size = journal.size(JournalTestEvent.class);
+        for (int i = 0; i < 100; i++) {
+            JournalTestCommand command = new JournalTestCommand();
+            command.value = "command " + i;
+            journal.save(command, command.events(journal.endpoint()));
+        }
+        assertEquals(size + 200, journal.size(JournalTestEvent.class));
+        long events = 0;
+        for (java.util.Iterator<Event> iterator = journal.eventIterator(JournalTestEvent.class); iterator.hasNext(); iterator.next()) {
+            events++;
+        }
+        assertEquals(size + 200, events);
+    }
+
+    @Test
+    @SneakyThrows
+    public void spliterator() {
+        for (int i = 0; i < 100; i++) {
+            JournalTestCommand command = new JournalTestCommand();
+            command.value = "spliterator " + i;
+            journal.save(command, command.events(journal.endpoint()));
+        }
+        journal.flush();
+        Spliterator<Event> spliterator = journal.eventSpliterator(JournalTestEvent.class);
+        if (spliterator.hasCharacteristics(Spliterator.SIZED)) {
+            assertEquals(journal.size(JournalTestEvent.class), spliterator.getExactSizeIfKnown());
+        }
+        Set<UUID> expected = new HashSet<>();
+        journal.eventIterator(JournalTestEvent.class).forEachRemaining(e -> expected.add(e.uuid()));
+        List<UUID> parallel = StreamSupport.stream(spliterator, true).map(Event::uuid).collect(Collectors.toList());
+        assertEquals(expected.size(), parallel.size());
+        assertEquals(expected, new HashSet<>(parallel));
+        assertEquals(journal.size(JournalTestCommand.class),
+                StreamSupport.stream(journal.commandSpliterator(JournalTestCommand.class), true).count());
+    }
+
+    @Test
+    @SneakyThrows
+    public void spliteratorWithinSegment() {
+        assumeTrue(journal instanceof OffHeapJournal);
+        OffHeapJournal single = new OffHeapJournal(physicalTimeProvider, 1024 * 1024);
+        single.endpoint(journal.endpoint());
+        for (int i = 0; i < 100; i++) {
+            JournalTestCommand command = new JournalTestCommand();
+            command.value = "split " + i;
+            single.save(command, command.events(journal.endpoint()));
+        }
+        Spliterator<Event> spliterator = single.eventSpliterator(JournalTestEvent.class);
+        assertEquals(200, spliterator.getExactSizeIfKnown());
+        Spliterator<Event> prefix = spliterator.trySplit();
+        assertNotNull("A single segment should be split at a record boundary", prefix);
+        assertFalse(spliterator.hasCharacteristics(Spliterator.SIZED));
+        List<String> values = new ArrayList<>();
+        prefix.forEachRemaining(e -> values.add(((JournalTestEvent) e).value));
+        int split = values.size();
+        spliterator.forEachRemaining(e -> values.add(((JournalTestEvent) e).value));
+        assertTrue(split > 0 && split < 200);
+        assertEquals(200, values.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("split " + i, values.get(2 * i));
+            assertEquals("split " + i + "!", values.get(2 * i + 1));
+        }
+        assertEquals(200, StreamSupport.stream(single.eventSpliterator(JournalTestEvent.class), true).count());
+    }
+
+    @Test
+    @SneakyThrows
+    public void timestamps() {
+        List<JournalTestCommand> commands = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            JournalTestCommand command = new JournalTestCommand();
+            command.value = "timestamps " + i;
+            journal.save(command, command.events(journal.endpoint()));
+            commands.add(command);
+        }
+        List<String> values = new ArrayList<>();
+        journal.eventsBetween(commands.get(0).timestamp(), commands.get(2).timestamp(), JournalTestEvent.class).
+                forEachRemaining(e -> values.add(((JournalTestEvent) e).value));
+        assertEquals(Arrays.asList("timestamps 0", "timestamps 0!", "timestamps 1", "timestamps 1!"), values);
+        List<Command> found = new ArrayList<>();
+        journal.commandsBetween(commands.get(0).timestamp(), commands.get(2).timestamp(), JournalTestCommand.class).
+                forEachRemaining(found::add);
+        assertEquals(Arrays.asList(commands.get(0).uuid(), commands.get(1).uuid()),
+                found.stream().map(Command::uuid).collect(Collectors.toList()));
+    }
+
+    @Test
+    @SneakyThrows
+    public void timestampRanges() {
+        List<JournalTestCommand> commands = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            JournalTestCommand command = new JournalTestCommand();
+            command.value = "range " + i;
+            journal.save(command, command.events(journal.endpoint()));
+            commands.add(command);
+        }
+        List<UUID> found = new ArrayList<>();
+        journal.commandsBetween(commands.get(30).timestamp(), commands.get(70).timestamp(), JournalTestCommand.class).
+                forEachRemaining(c -> found.add(c.uuid()));
+        assertEquals(commands.subList(30, 70).stream().map(Command::uuid).collect(Collectors.toList()), found);
+        List<String> values = new ArrayList<>();
+        journal.eventsBetween(commands.get(99).timestamp(), new TimeStamp(-1L), JournalTestEvent.class).
+                forEachRemaining(e -> values.add(((JournalTestEvent) e).value));
+        assertEquals(Arrays.asList("range 99", "range 99!"), values);
+        assertFalse(journal.commandsBetween(commands.get(50).timestamp(), commands.get(50).timestamp(), JournalTestCommand.class).hasNext());
+    }
+
+    @Test
+    @SneakyThrows
+    public void export() {
+        assumeTrue(journal instanceof SegmentedJournal);
+        JournalTestCommand command = new JournalTestCommand();
+        command.value = "export";
         journal.save(command, command.events(journal.endpoint()));
-        assertEquals(1, journal.size(TestCommand.class));
+
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        journal.exportTo(Channels.newChannel(export));
+        OffHeapJournal imported = new OffHeapJournal(physicalTimeProvider, 4096);
+        imported.endpoint(journal.endpoint());
+        imported.importFrom(Channels.newChannel(new ByteArrayInputStream(export.toByteArray())));
+
+        assertEquals(journal.position(), imported.position());
+        assertEquals(journal.size(JournalTestEvent.class), imported.size(JournalTestEvent.class));
+        assertEquals("export", ((JournalTestCommand) imported.findCommand(command.uuid()).get()).value);
+        assertEquals(2, imported.events(command).count());
+    }
+
+    @Test
+    @SneakyThrows
+    public void exportEndingAtSegmentBoundary() {
+        assumeTrue(journal instanceof OffHeapJournal);
+        OffHeapJournal sizing = new OffHeapJournal(physicalTimeProvider, 4096);
+        sizing.endpoint(journal.endpoint());
+        JournalTestCommand command = new JournalTestCommand();
+        command.value = "boundary";
+        sizing.save(command, command.events(journal.endpoint()));
+
+        // a segment that fits exactly one command with its events
+        OffHeapJournal exact = new OffHeapJournal(physicalTimeProvider, (int) sizing.position());
+        exact.endpoint(journal.endpoint());
+        command = new JournalTestCommand();
+        command.value = "boundary";
+        exact.save(command, command.events(journal.endpoint()));
+        assertEquals(exact.segmentSize(), exact.position());
+
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        exact.exportTo(Channels.newChannel(export));
+        assertEquals(12 + exact.segmentSize(), export.size());
+        OffHeapJournal imported = new OffHeapJournal(physicalTimeProvider, exact.segmentSize());
+        imported.endpoint(journal.endpoint());
+        imported.importFrom(Channels.newChannel(new ByteArrayInputStream(export.toByteArray())));
+        assertEquals(1, imported.segments.size());
+        assertEquals(exact.position(), imported.position());
+        assertEquals(2, imported.events(command).count());
+    }
+
+    /**
+     * Off-heap journal counting lookups in its UUID index and reads of its segments
+     */
+    private static class CountingJournal extends OffHeapJournal {
+        private final AtomicInteger lookups = new AtomicInteger();
+        private final AtomicInteger reads = new AtomicInteger();
+
+        CountingJournal() {
+            super(physicalTimeProvider, 64 * 1024);
+            UUIDIndex index = uuidIndex;
+            uuidIndex = new UUIDIndex() {
+                @Override
+                public long get(UUID uuid) {
+                    lookups.incrementAndGet();
+                    return index.get(uuid);
+                }
+
+                @Override
+                public void put(UUID uuid, long position) {
+                    index.put(uuid, position);
+                }
+
+                @Override
+                public long position() {
+                    return index.position();
+                }
+
+                @Override
+                public void forEach(Consumer<UUID> consumer) {
+                    index.forEach(consumer);
+                }
+            };
+        }
+
+        @Override
+        protected ByteBuffer buffer(long position) {
+            reads.incrementAndGet();
+            return super.buffer(position);
+        }
+
+        /**
+         * Looks up random UUIDs
+         *
+         * @return number of index lookups and segment reads they took
+         */
+        int lookUpUnknown(int count) {
+            lookups.set(0);
+            reads.set(0);
+            for (int i = 0; i < count; i++) {
+                assertFalse(containsEvent(UUID.randomUUID()));
+                assertFalse(containsCommand(UUID.randomUUID()));
+                assertFalse(findEvent(UUID.randomUUID()).isPresent());
+                assertFalse(findCommand(UUID.randomUUID()).isPresent());
+            }
+            return lookups.get() + reads.get();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void bloomFilter() {
+        assumeTrue(journal instanceof OffHeapJournal);
+        CountingJournal counting = new CountingJournal();
+        counting.endpoint(journal.endpoint());
+        List<JournalTestCommand> commands = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            JournalTestCommand command = new JournalTestCommand();
+            command.value = "bloom " + i;
+            counting.save(command, command.events(journal.endpoint()));
+            commands.add(command);
+        }
+
+        // negative lookups don't touch the index or the segments
+        assertEquals(0, counting.lookUpUnknown(1000));
+        counting.reads.set(0);
+        assertTrue(counting.containsCommand(commands.get(0).uuid()));
+        assertTrue(counting.reads.get() > 0);
+
+        // a filter sized for far fewer records lets most lookups through, but finds all records
+        counting.bloomFilter(10, 0.5);
+        assertTrue(counting.lookUpUnknown(1000) > 0);
+        for (JournalTestCommand command : commands) {
+            assertTrue(counting.containsCommand(command.uuid()));
+            assertEquals(2, counting.events(command).count());
+        }
+
+        // records journalled after reconfiguration are added to the new filter
+        counting.bloomFilter(10_000, 0.0001);
+        JournalTestCommand command = new JournalTestCommand();
+        command.value = "bloom";
+        counting.save(command, command.events(journal.endpoint()));
+        assertEquals(0, counting.lookUpUnknown(1000));
+        assertTrue(counting.containsCommand(command.uuid()));
+        for (JournalTestCommand journalled : commands) {
+            assertTrue(counting.containsCommand(journalled.uuid()));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void shardedSaveAsync() {
+        assumeTrue(journal instanceof ShardedJournal);
+        AtomicInteger saves = new AtomicInteger();
+        AtomicInteger flushes = new AtomicInteger();
+        List<Journal> shards = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            shards.add(new MemoryJournal(physicalTimeProvider) {
+                @Override
+                public CompletableFuture<Long> saveAsync(Command command, Stream<Event> events) {
+                    saves.incrementAndGet();
+                    return super.saveAsync(command, events);
+                }
+
+                @Override
+                public void flush() {
+                    flushes.incrementAndGet();
+                }
+            });
+        }
+        ShardedJournal sharded = new ShardedJournal(physicalTimeProvider, shards);
+        sharded.endpoint(journal.endpoint());
+        List<JournalTestCommand> commands = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            JournalTestCommand command = new JournalTestCommand();
+            command.value = "sharded " + i;
+            assertEquals(2L, (long) sharded.saveAsync(command, command.events(journal.endpoint())).get(10, TimeUnit.SECONDS));
+            commands.add(command);
+        }
+        // every command is saved by its shard, which flushes it on its own
+        assertEquals(10, saves.get());
+        assertEquals(10, flushes.get());
+        // timestamps are ordered across shards
+        for (int i = 1; i < commands.size(); i++) {
+            assertTrue(commands.get(i - 1).timestamp().compareTo(commands.get(i).timestamp()) < 0);
+        }
+        assertEquals(20, sharded.size(JournalTestEvent.class));
+    }
+
+    @Test
+    @SneakyThrows
+    public void concurrentJournalling() {
+        long commands = journal.size(JournalTestCommand.class);
+        long events = journal.size(JournalTestEvent.class);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 1000; i++) {
+            executor.submit(() -> {
+                JournalTestCommand command = new JournalTestCommand();
+                command.value = "concurrent";
+                return journal.save(command, command.events(journal.endpoint()));
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(commands + 1000, journal.size(JournalTestCommand.class));
+        assertEquals(events + 2000, journal.size(JournalTestEvent.class));
+    }
+
+    @Test
+    @SneakyThrows
+    public void concurrentTimestampRanges() {
+        List<JournalTestCommand> commands = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 1000; i++) {
+            executor.submit(() -> {
+                JournalTestCommand command = new JournalTestCommand();
+                command.value = "ordered";
+                long count = journal.save(command, command.events(journal.endpoint()));
+                commands.add(command);
+                return count;
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        journal.flush();
+
+        // every shard or segment journals records in timestamp order, so ranges find all of them
+        List<JournalTestCommand> ordered = new ArrayList<>(commands);
+        ordered.sort((a, b) -> HybridTimestamp.compare(a.timestamp(), b.timestamp()));
+        List<UUID> found = new ArrayList<>();
+        journal.commandsBetween(ordered.get(0).timestamp(), new TimeStamp(-1L), JournalTestCommand.class).
+                forEachRemaining(c -> {
+                    if ("ordered".equals(((JournalTestCommand) c).value)) {
+                        found.add(c.uuid());
+                    }
+                });
+        assertEquals(ordered.stream().map(Command::uuid).collect(Collectors.toList()), found);
+    }
+
+    private boolean supportsPositions() {
+        try {
+            journal.position();
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void subscription() {
+        assumeTrue(supportsPositions());
+        class Subscriber implements JournalSubscriber {
+            private final BlockingQueue<Event> received = new LinkedBlockingQueue<>();
+            private final BlockingQueue<Long> positions = new LinkedBlockingQueue<>();
+            private JournalSubscription subscription;
+
+            @Override
+            public void onSubscribe(JournalSubscription subscription) {
+                this.subscription = subscription;
+                subscription.request(3);
+            }
+
+            @Override
+            public void onNext(Event event, long position) {
+                received.add(event);
+                positions.add(position);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            String next() throws InterruptedException {
+                return ((JournalTestEvent) received.poll(10, TimeUnit.SECONDS)).value;
+            }
+        }
+        Subscriber subscriber = new Subscriber();
+        JournalSubscription subscription = journal.subscribe(subscriber);
+        for (int i = 0; i < 3; i++) {
+            JournalTestCommand command = new JournalTestCommand();
+            command.value = "subscription " + i;
+            journal.save(command, command.events(journal.endpoint()));
+        }
+        // events are delivered once durable
+        journal.flush();
+
+        assertEquals("subscription 0", subscriber.next());
+        assertEquals("subscription 0!", subscriber.next());
+        assertEquals("subscription 1", subscriber.next());
+        // only 3 events were requested
+        assertNull(subscriber.received.poll(100, TimeUnit.MILLISECONDS));
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals("subscription 1!", subscriber.next());
+        subscription.cancel();
+
+        // resume after the second event
+        subscriber.positions.poll();
+        Subscriber resumed = new Subscriber();
+        journal.subscribe(resumed, subscriber.positions.poll());
+        assertEquals("subscription 1", resumed.next());
+        resumed.subscription.cancel();
+    }
+
+    @Test
+    @SneakyThrows
+    public void subscriptionsShareExecutor() {
+        assumeTrue(supportsPositions());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        journal.subscriptionExecutor(executor);
+        try {
+            List<BlockingQueue<Long>> received = new ArrayList<>();
+            List<JournalSubscription> subscriptions = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                BlockingQueue<Long> positions = new LinkedBlockingQueue<>();
+                received.add(positions);
+                subscriptions.add(journal.subscribe(new JournalSubscriber() {
+                    @Override
+                    public void onSubscribe(JournalSubscription subscription) {
+                        subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(Event event, long position) {
+                        // -1 marks an event delivered before it's durable
+                        positions.add(position <= journal.durablePosition() ? position : -1);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                    }
+                }));
+            }
+            for (int i = 0; i < 5; i++) {
+                JournalTestCommand command = new JournalTestCommand();
+                command.value = "shared " + i;
+                journal.save(command, command.events(journal.endpoint()));
+            }
+            journal.flush();
+
+            // all subscriptions are served by a single thread
+            for (BlockingQueue<Long> positions : received) {
+                for (int i = 0; i < 10; i++) {
+                    assertTrue(positions.poll(10, TimeUnit.SECONDS) >= 0);
+                }
+            }
+            subscriptions.forEach(JournalSubscription::cancel);
+        } finally {
+            journal.subscriptionExecutor(JournalSubscription.DEFAULT_EXECUTOR);
+            executor.shutdown();
+        }
     }
 
-}
\ No newline at end of file
+}
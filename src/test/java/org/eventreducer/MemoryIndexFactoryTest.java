@@ -0,0 +1,234 @@
+package org.eventreducer;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+import lombok.SneakyThrows;
+import org.eventreducer.annotations.Index;
+import org.eventreducer.annotations.Property;
+import org.eventreducer.hlc.NTPServerTimeProvider;
+import org.eventreducer.hlc.PhysicalTimeProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static org.eventreducer.IndexFactory.IndexFeature.*;
+import static org.junit.Assert.*;
+
+public class MemoryIndexFactoryTest {
+
+    public static class SnapshotTestCommand extends Command<Void> {
+        @Property
+        public int value;
+
+        @Property
+        public String name;
+
+        @Index(features = {EQ, SW})
+        public static final SimpleAttribute<SnapshotTestCommand, String> NAME = new SimpleAttribute<SnapshotTestCommand, String>() {
+            @Override
+            public String getValue(SnapshotTestCommand command, QueryOptions queryOptions) {
+                return command.name;
+            }
+        };
+
+        @Override
+        public Stream<Event> events(Endpoint endpoint) throws Exception {
+            SnapshotTestEvent event = new SnapshotTestEvent();
+            event.value = value;
+            return Stream.of(event);
+        }
+    }
+
+    public static class SnapshotTestEvent extends Event {
+        @Property
+        public int value;
+
+        @Index
+        public static final SimpleAttribute<SnapshotTestEvent, Integer> VALUE = new SimpleAttribute<SnapshotTestEvent, Integer>() {
+            @Override
+            public Integer getValue(SnapshotTestEvent event, QueryOptions queryOptions) {
+                return event.value;
+            }
+        };
+
+        @Index(features = {EQ, LT, GT})
+        public static final SimpleAttribute<SnapshotTestEvent, Integer> RANGE = new SimpleAttribute<SnapshotTestEvent, Integer>() {
+            @Override
+            public Integer getValue(SnapshotTestEvent event, QueryOptions queryOptions) {
+                return event.value;
+            }
+        };
+    }
+
+    /**
+     * Journal that records how it is read
+     */
+    private static class ReadJournal extends FileJournal {
+        private final List<Long> iterated = new ArrayList<>();
+        private int eventIterators;
+        private int lookups;
+
+        ReadJournal(PhysicalTimeProvider physicalTimeProvider, File directory) throws IOException {
+            super(physicalTimeProvider, directory, 4096);
+        }
+
+        @Override
+        public JournalIterator<Serializable> iterator(long from, long to) {
+            iterated.add(from);
+            return super.iterator(from, to);
+        }
+
+        @Override
+        public Iterator<Event> eventIterator(Class<? extends Event> klass) {
+            if (klass == SnapshotTestEvent.class) {
+                eventIterators++;
+            }
+            return super.eventIterator(klass);
+        }
+
+        @Override
+        public Optional<Event> findEvent(UUID uuid) {
+            lookups++;
+            return super.findEvent(uuid);
+        }
+    }
+
+    private NTPServerTimeProvider physicalTimeProvider;
+    private File directory;
+    private File snapshotFile;
+    private ReadJournal journal;
+    private MemoryIndexFactory indexFactory;
+    private Endpoint endpoint;
+
+    @Before
+    @SneakyThrows
+    public void setup() {
+        physicalTimeProvider = new NTPServerTimeProvider();
+        physicalTimeProvider.startAsync().awaitRunning();
+        directory = Files.createTempDirectory("eventreducer").toFile();
+        snapshotFile = new File(directory, "indices.snapshot");
+        start();
+    }
+
+    @After
+    public void teardown() {
+        stop();
+    }
+
+    @SneakyThrows
+    private void start() {
+        journal = new ReadJournal(physicalTimeProvider, directory);
+        indexFactory = new MemoryIndexFactory().snapshotFile(snapshotFile);
+        endpoint = Endpoint.builder().packagePrefix("org.eventreducer").journal(journal).
+                indexFactory(indexFactory).lockFactory(new MemoryLockFactory()).build();
+        endpoint.startAsync().awaitRunning();
+    }
+
+    @SneakyThrows
+    private void stop() {
+        endpoint.stopAsync().awaitTerminated();
+        journal.close();
+    }
+
+    private void restart() {
+        stop();
+        start();
+    }
+
+    @SneakyThrows
+    private void publish(int from, int to) {
+        for (int i = from; i < to; i++) {
+            SnapshotTestCommand command = new SnapshotTestCommand();
+            command.value = i;
+            command.name = "command " + i;
+            endpoint.publish(command).get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private void assertIndexed(int count) {
+        for (int i = 0; i < count; i++) {
+            ResultSet<SnapshotTestEvent> events = indexFactory.getIndexedCollection(SnapshotTestEvent.class).
+                    retrieve(equal(SnapshotTestEvent.VALUE, i));
+            assertEquals(1, events.size());
+            assertEquals(i, events.uniqueResult().value);
+        }
+        List<Integer> range = StreamSupport.stream(indexFactory.getIndexedCollection(SnapshotTestEvent.class).
+                retrieve(lessThan(SnapshotTestEvent.RANGE, 10)).spliterator(), false).
+                map(e -> e.value).sorted().collect(Collectors.toList());
+        assertEquals(Math.min(count, 10), range.size());
+        assertEquals(11, indexFactory.getIndexedCollection(SnapshotTestCommand.class).
+                retrieve(startsWith(SnapshotTestCommand.NAME, "command 1")).size());
+    }
+
+    @Test
+    @SneakyThrows
+    public void restore() {
+        publish(0, 50);
+        indexFactory.snapshot();
+        long position = journal.position();
+        publish(50, 100);
+        restart();
+
+        // indices are restored from the snapshot, only the tail is read
+        assertEquals(0, journal.eventIterators);
+        assertEquals(1, journal.iterated.size());
+        assertEquals(position, (long) journal.iterated.get(0));
+        // indices hold records, every one read once to restore them
+        assertEquals(50, journal.lookups);
+        assertIndexed(100);
+        assertEquals(50, journal.lookups);
+
+        // and are maintained as before
+        publish(100, 110);
+        assertEquals(1, indexFactory.getIndexedCollection(SnapshotTestEvent.class).
+                retrieve(equal(SnapshotTestEvent.VALUE, 105)).size());
+    }
+
+    @Test
+    @SneakyThrows
+    public void unindexedCommands() {
+        publish(0, 50);
+        // journalled while the snapshot is taken, but not indexed yet
+        long token = indexFactory.journalling();
+        SnapshotTestCommand command = new SnapshotTestCommand();
+        command.value = 50;
+        command.name = "command 50";
+        journal.save(command, command.events(endpoint));
+        publish(51, 60);
+        indexFactory.snapshot();
+        indexFactory.indexed(token);
+        restart();
+
+        assertEquals(1, journal.iterated.size());
+        assertEquals(token, (long) journal.iterated.get(0));
+        assertIndexed(60);
+    }
+
+    @Test
+    @SneakyThrows
+    public void unusableSnapshot() {
+        publish(0, 50);
+        Files.write(snapshotFile.toPath(), new byte[]{1, 2, 3});
+        restart();
+
+        // indices are populated from the journal
+        assertTrue(journal.eventIterators > 0);
+        assertIndexed(50);
+    }
+
+}
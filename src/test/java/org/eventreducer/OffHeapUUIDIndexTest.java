@@ -0,0 +1,48 @@
+package org.eventreducer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class OffHeapUUIDIndexTest {
+
+    @Test
+    public void resize() {
+        OffHeapUUIDIndex index = new OffHeapUUIDIndex();
+        List<UUID> uuids = new ArrayList<>();
+        int resizing = (int) OffHeapUUIDIndex.INITIAL_SLOTS / 2 + 100;
+        for (int i = 0; i < resizing; i++) {
+            uuids.add(UUID.randomUUID());
+            index.put(uuids.get(i), i);
+        }
+        // entries of the previous table are found while they are migrated
+        for (int i = 0; i < resizing; i++) {
+            assertEquals(i, index.get(uuids.get(i)));
+        }
+        Set<UUID> all = new HashSet<>();
+        index.forEach(all::add);
+        assertEquals(new HashSet<>(uuids), all);
+
+        // and once migration is done, along with entries added since
+        for (int i = resizing; i < 4 * resizing; i++) {
+            uuids.add(UUID.randomUUID());
+            index.put(uuids.get(i), i);
+        }
+        index.put(uuids.get(0), 42);
+        assertEquals(42, index.get(uuids.get(0)));
+        for (int i = 1; i < uuids.size(); i++) {
+            assertEquals(i, index.get(uuids.get(i)));
+        }
+        assertEquals(-1, index.get(UUID.randomUUID()));
+        all.clear();
+        index.forEach(all::add);
+        assertEquals(uuids.size(), all.size());
+    }
+
+}
@@ -0,0 +1,356 @@
+package org.eventreducer;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.query.QueryFactory;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import com.lmax.disruptor.dsl.ProducerType;
+import lombok.SneakyThrows;
+import org.eventreducer.annotations.Index;
+import org.eventreducer.annotations.Property;
+import org.eventreducer.annotations.Publishing;
+import org.eventreducer.hlc.NTPServerTimeProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.*;
+
+public class PublisherTest {
+
+    @Publishing(ringBufferSize = 16, waitStrategy = YieldingWaitStrategy.class, extractors = 4)
+    public static class HotCommand extends Command<Void> {
+        @Property
+        public int value;
+
+        @Override
+        public Stream<Event> events(Endpoint endpoint) throws Exception {
+            HotEvent event = new HotEvent();
+            event.value = value;
+            return Stream.of(event);
+        }
+    }
+
+    public static class HotEvent extends Event {
+        @Property
+        public int value;
+
+        @Index
+        public static final SimpleAttribute<HotEvent, Integer> VALUE = new SimpleAttribute<HotEvent, Integer>() {
+            @Override
+            public Integer getValue(HotEvent event, QueryOptions queryOptions) {
+                return event.value;
+            }
+        };
+    }
+
+    public static class AdminCommand extends Command<Void> {
+        @Property
+        public String reason = "maintenance";
+
+        @Override
+        public Stream<Event> events(Endpoint endpoint) throws Exception {
+            return Stream.empty();
+        }
+    }
+
+    public static class SlowCommand extends Command<Void> {
+        static volatile CountDownLatch latch = new CountDownLatch(0);
+
+        @Property
+        public int value;
+
+        @Override
+        public Stream<Event> events(Endpoint endpoint) throws Exception {
+            latch.await();
+            return Stream.empty();
+        }
+    }
+
+    public static class BatchedCommand extends Command<Void> {
+        static volatile CountDownLatch extracted = new CountDownLatch(0);
+
+        @Property
+        public int value;
+
+        @Override
+        public Stream<Event> events(Endpoint endpoint) throws Exception {
+            extracted.countDown();
+            return Stream.empty();
+        }
+    }
+
+    @Publishing(extractors = 2)
+    public static class LazyCommand extends Command<Void> {
+        @Property
+        public int value;
+
+        @Override
+        public Stream<Event> events(Endpoint endpoint) throws Exception {
+            return Stream.of(value).map(v -> {
+                if (v < 0) {
+                    throw new IllegalStateException("Lazy extraction failed");
+                }
+                HotEvent event = new HotEvent();
+                event.value = v;
+                return event;
+            });
+        }
+    }
+
+    private NTPServerTimeProvider physicalTimeProvider;
+    private Endpoint endpoint;
+
+    @Before
+    @SneakyThrows
+    public void setup() {
+        physicalTimeProvider = new NTPServerTimeProvider();
+        physicalTimeProvider.startAsync().awaitRunning();
+        endpoint = Endpoint.builder().packagePrefix("org.eventreducer").journal(new MemoryJournal(physicalTimeProvider)).
+                indexFactory(new MemoryIndexFactory()).lockFactory(new MemoryLockFactory()).
+                publisherConfiguration(AdminCommand.class, new PublisherConfiguration().ringBufferSize(2).producerType(ProducerType.SINGLE)).
+                publisherConfiguration(SlowCommand.class, new PublisherConfiguration().ringBufferSize(4)).
+                build();
+        endpoint.startAsync().awaitRunning();
+    }
+
+    @After
+    public void teardown() {
+        endpoint.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    @SneakyThrows
+    public void configuration() {
+        List<CompletableFuture<Publisher.CommandPublished<Void>>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            HotCommand command = new HotCommand();
+            command.value = i;
+            futures.add(endpoint.publish(command));
+            futures.add(endpoint.publish(new AdminCommand()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get(10, TimeUnit.SECONDS);
+        assertEquals(100, endpoint.journal().size(HotEvent.class));
+        assertEquals(100, endpoint.journal().size(AdminCommand.class));
+    }
+
+    @Test
+    @SneakyThrows
+    public void publishAll() {
+        List<Command<Void>> commands = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            HotCommand command = new HotCommand();
+            command.value = i;
+            commands.add(command);
+            if (i % 100 == 0) {
+                commands.add(new AdminCommand());
+            }
+        }
+        List<Publisher.CommandPublished<Void>> results = endpoint.publishAll(commands).get(10, TimeUnit.SECONDS);
+        assertEquals(commands.size(), results.size());
+        for (int i = 0; i < commands.size(); i++) {
+            assertEquals(commands.get(i) instanceof HotCommand ? 1 : 0, results.get(i).getEvents());
+        }
+        assertEquals(1000, endpoint.journal().size(HotEvent.class));
+        // extracted in parallel, but journalled in order
+        List<Event> events = StreamSupport.stream(endpoint.journal().eventSpliterator(HotEvent.class), false).
+                collect(Collectors.toList());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, ((HotEvent) events.get(i)).value);
+        }
+        // indexed as journalled
+        assertEquals(1, endpoint.indexFactory().getIndexedCollection(HotEvent.class).
+                retrieve(QueryFactory.equal(HotEvent.VALUE, 999)).size());
+        assertEquals(1000, endpoint.indexFactory().getIndexedCollection(HotEvent.class).size());
+        assertEquals(10, endpoint.journal().size(AdminCommand.class));
+        assertTrue(endpoint.publishAll(new ArrayList<HotCommand>()).get().isEmpty());
+    }
+
+    @Test
+    @SneakyThrows
+    public void groupCommit() {
+        CountDownLatch released = new CountDownLatch(1);
+        Set<UUID> unflushed = ConcurrentHashMap.newKeySet();
+        Set<UUID> flushed = ConcurrentHashMap.newKeySet();
+        AtomicInteger flushes = new AtomicInteger();
+        Journal journal = new MemoryJournal(physicalTimeProvider) {
+            @Override
+            @SneakyThrows
+            protected long journal(Command command, Stream<Event> events) {
+                released.await();
+                unflushed.add(command.uuid());
+                return super.journal(command, events);
+            }
+
+            @Override
+            public void flush() {
+                flushes.incrementAndGet();
+                flushed.addAll(unflushed);
+                unflushed.clear();
+            }
+        };
+        Endpoint batching = Endpoint.builder().packagePrefix("org.eventreducer").journal(journal).
+                indexFactory(new MemoryIndexFactory()).lockFactory(new MemoryLockFactory()).build();
+        batching.startAsync().awaitRunning();
+        try {
+            BatchedCommand.extracted = new CountDownLatch(100);
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                BatchedCommand command = new BatchedCommand();
+                command.value = i;
+                futures.add(batching.publish(command).thenApply(published -> flushed.contains(command.uuid())));
+            }
+            // all commands are waiting to be journalled by the time journalling resumes,
+            // so they are journalled in at most two batches
+            assertTrue(BatchedCommand.extracted.await(10, TimeUnit.SECONDS));
+            released.countDown();
+            for (CompletableFuture<Boolean> future : futures) {
+                assertTrue("Command completed before it was flushed", future.get(10, TimeUnit.SECONDS));
+            }
+            assertTrue("Expected at most 2 flushes, got " + flushes.get(), flushes.get() <= 2);
+        } finally {
+            batching.stopAsync().awaitTerminated();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void forcesPerBatch() {
+        CountDownLatch released = new CountDownLatch(1);
+        AtomicInteger forces = new AtomicInteger();
+        FileJournal journal = new FileJournal(physicalTimeProvider, Files.createTempDirectory("eventreducer").toFile()) {
+            @Override
+            @SneakyThrows
+            protected long journal(Command command, Stream<Event> events) {
+                released.await();
+                return super.journal(command, events);
+            }
+
+            @Override
+            long force() {
+                forces.incrementAndGet();
+                return super.force();
+            }
+        };
+        Endpoint batching = Endpoint.builder().packagePrefix("org.eventreducer").journal(journal).
+                indexFactory(new MemoryIndexFactory()).lockFactory(new MemoryLockFactory()).build();
+        batching.startAsync().awaitRunning();
+        try {
+            BatchedCommand.extracted = new CountDownLatch(100);
+            List<CompletableFuture<Publisher.CommandPublished<Void>>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                BatchedCommand command = new BatchedCommand();
+                command.value = i;
+                futures.add(batching.publish(command));
+            }
+            // without group commit, records are forced once per batch rather than per command
+            assertTrue(BatchedCommand.extracted.await(10, TimeUnit.SECONDS));
+            released.countDown();
+            for (CompletableFuture<Publisher.CommandPublished<Void>> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(journal.position(), journal.durablePosition());
+            assertTrue("Expected at most 2 forces, got " + forces.get(), forces.get() <= 2);
+        } finally {
+            batching.stopAsync().awaitTerminated();
+            journal.close();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void lazyExtraction() {
+        LazyCommand command = new LazyCommand();
+        command.value = 1;
+        assertEquals(1, endpoint.publish(command).get(10, TimeUnit.SECONDS).getEvents());
+        command = new LazyCommand();
+        command.value = -1;
+        try {
+            endpoint.publish(command).get(10, TimeUnit.SECONDS);
+            fail("Extraction failure should have been propagated");
+        } catch (ExecutionException e) {
+            // events are produced by the extraction stage, even if the stream is lazy
+            assertTrue(e.getCause() instanceof EventExtractionException);
+            assertEquals("Lazy extraction failed", ((EventExtractionException) e.getCause()).getThrowable().getMessage());
+        }
+        assertFalse(endpoint.journal().containsCommand(command.uuid()));
+    }
+
+    @Test
+    @SneakyThrows
+    public void journallingFailure() {
+        Journal journal = new MemoryJournal(physicalTimeProvider) {
+            @Override
+            protected boolean groupsFlushes() {
+                return true;
+            }
+
+            @Override
+            public CompletableFuture<Long> saveAsync(Command command, Stream<Event> events) {
+                throw new IllegalStateException("Journal is unavailable");
+            }
+        };
+        Endpoint failing = Endpoint.builder().packagePrefix("org.eventreducer").journal(journal).
+                indexFactory(new MemoryIndexFactory()).lockFactory(new MemoryLockFactory()).build();
+        failing.startAsync().awaitRunning();
+        try {
+            failing.publish(new HotCommand()).get(10, TimeUnit.SECONDS);
+            fail("Journalling failure should have been propagated");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EventJournallingException);
+            assertEquals("Journal is unavailable", ((EventJournallingException) e.getCause()).getThrowable().getMessage());
+        } finally {
+            failing.stopAsync().awaitTerminated();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void tryPublish() {
+        SlowCommand.latch = new CountDownLatch(1);
+        Publisher<Void, SlowCommand> publisher = endpoint.publisher(SlowCommand.class);
+        assertEquals(4, publisher.remainingCapacity());
+        List<CompletableFuture<Publisher.CommandPublished<Void>>> accepted = new ArrayList<>();
+        CompletableFuture<Publisher.CommandPublished<Void>> rejected;
+        while (true) {
+            CompletableFuture<Publisher.CommandPublished<Void>> future = endpoint.tryPublish(new SlowCommand());
+            if (future.isCompletedExceptionally()) {
+                rejected = future;
+                break;
+            }
+            accepted.add(future);
+        }
+        assertEquals(4, accepted.size());
+        assertEquals(0, publisher.remainingCapacity());
+        try {
+            rejected.get();
+            fail("Command should have been rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CommandRejectedException);
+        }
+        SlowCommand.latch.countDown();
+        CompletableFuture.allOf(accepted.toArray(new CompletableFuture[accepted.size()])).get(10, TimeUnit.SECONDS);
+        assertEquals(4, endpoint.journal().size(SlowCommand.class));
+        // slots are released shortly after commands complete
+        while (publisher.remainingCapacity() == 0) {
+            Thread.sleep(1);
+        }
+        assertNotNull(publisher.tryPublish(new SlowCommand()).get(10, TimeUnit.SECONDS));
+    }
+
+}
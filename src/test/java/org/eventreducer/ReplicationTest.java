@@ -0,0 +1,298 @@
+package org.eventreducer;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.query.QueryFactory;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import lombok.SneakyThrows;
+import org.eventreducer.annotations.Index;
+import org.eventreducer.annotations.Property;
+import org.eventreducer.hlc.NTPServerTimeProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ReplicationTest {
+
+    public static class ReplicatedCommand extends Command<Void> {
+        @Property
+        public int value;
+
+        @Override
+        public Stream<Event> events(Endpoint endpoint) throws Exception {
+            ReplicatedEvent event = new ReplicatedEvent();
+            event.value = value;
+            return Stream.of(event);
+        }
+    }
+
+    public static class ReplicatedEvent extends Event {
+        @Property
+        public int value;
+
+        @Index
+        public static final SimpleAttribute<ReplicatedEvent, Integer> VALUE = new SimpleAttribute<ReplicatedEvent, Integer>() {
+            @Override
+            public Integer getValue(ReplicatedEvent event, QueryOptions queryOptions) {
+                return event.value;
+            }
+        };
+    }
+
+    private NTPServerTimeProvider physicalTimeProvider;
+    private File primaryDirectory;
+    private Endpoint primary;
+    private Endpoint standby;
+    private ReplicationServer server;
+    private ReplicationClient client;
+
+    @Before
+    @SneakyThrows
+    public void setup() {
+        physicalTimeProvider = new NTPServerTimeProvider();
+        physicalTimeProvider.startAsync().awaitRunning();
+        primaryDirectory = Files.createTempDirectory("eventreducer").toFile();
+        primary = endpoint(new FileJournal(physicalTimeProvider, primaryDirectory, 4096));
+        standby = endpoint(new FileJournal(physicalTimeProvider, Files.createTempDirectory("eventreducer").toFile(), 4096));
+    }
+
+    private Endpoint endpoint(Journal journal) {
+        Endpoint endpoint = Endpoint.builder().packagePrefix("org.eventreducer").journal(journal).
+                indexFactory(new MemoryIndexFactory()).lockFactory(new MemoryLockFactory()).build();
+        endpoint.startAsync().awaitRunning();
+        return endpoint;
+    }
+
+    private void replicate(ReplicationServer.Mode mode) {
+        serve(0, mode);
+        client = new ReplicationClient(standby, new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port()));
+        client.startAsync().awaitRunning();
+    }
+
+    private void serve(int port, ReplicationServer.Mode mode) {
+        server = new ReplicationServer((SegmentedJournal) primary.journal(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port)).mode(mode);
+        server.startAsync().awaitRunning();
+    }
+
+    @After
+    public void teardown() {
+        if (client != null) {
+            client.stopAsync().awaitTerminated();
+        }
+        if (server != null) {
+            server.stopAsync().awaitTerminated();
+        }
+        primary.stopAsync().awaitTerminated();
+        standby.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    @SneakyThrows
+    public void synchronous() {
+        replicate(ReplicationServer.Mode.SYNCHRONOUS);
+        for (int i = 0; i < 100; i++) {
+            ReplicatedCommand command = new ReplicatedCommand();
+            command.value = i;
+            primary.publish(command).get(10, TimeUnit.SECONDS);
+            // acknowledged, so already applied and indexed on the standby
+            assertTrue(standby.journal().containsCommand(command.uuid()));
+            assertEquals(1, standby.indexFactory().getIndexedCollection(ReplicatedEvent.class).
+                    retrieve(QueryFactory.equal(ReplicatedEvent.VALUE, i)).size());
+        }
+        assertEquals(primary.journal().position(), server.acknowledged());
+        assertEquals(100, standby.journal().size(ReplicatedEvent.class));
+    }
+
+    @Test
+    @SneakyThrows
+    public void catchUp() {
+        List<ReplicatedCommand> commands = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ReplicatedCommand command = new ReplicatedCommand();
+            command.value = i;
+            commands.add(command);
+            primary.publish(command).get(10, TimeUnit.SECONDS);
+        }
+        replicate(ReplicationServer.Mode.ASYNCHRONOUS);
+        server.acknowledged(primary.journal().position()).get(10, TimeUnit.SECONDS);
+        assertEquals(primary.journal().position(), client.position());
+        for (ReplicatedCommand command : commands) {
+            ReplicatedCommand replicated = (ReplicatedCommand) standby.journal().findCommand(command.uuid()).get();
+            assertEquals(command.value, replicated.value);
+            assertEquals(command.timestamp(), replicated.timestamp());
+        }
+        assertEquals(100, standby.indexFactory().getIndexedCollection(ReplicatedEvent.class).size());
+    }
+
+    private List<ReplicatedCommand> publish(int from, int count) throws Exception {
+        List<ReplicatedCommand> commands = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            ReplicatedCommand command = new ReplicatedCommand();
+            command.value = i;
+            commands.add(command);
+            primary.publish(command).get(10, TimeUnit.SECONDS);
+        }
+        return commands;
+    }
+
+    private void assertReplicated(List<ReplicatedCommand> commands) {
+        assertEquals(commands.size(), standby.journal().size(ReplicatedCommand.class));
+        assertEquals(commands.size(), standby.indexFactory().getIndexedCollection(ReplicatedEvent.class).size());
+        for (ReplicatedCommand command : commands) {
+            ReplicatedCommand replicated = (ReplicatedCommand) standby.journal().findCommand(command.uuid()).get();
+            assertEquals(command.value, replicated.value);
+            assertEquals(1, standby.journal().events(replicated).count());
+        }
+    }
+
+    /**
+     * Writes records of the primary's journal as a {@link ReplicationServer} does
+     *
+     * @return position after the last record written
+     */
+    private long ship(DataOutputStream output, long position, int records) throws IOException {
+        SegmentedJournal journal = (SegmentedJournal) primary.journal();
+        for (int i = 0; i < records; i++) {
+            position = journal.recordAt(position);
+            ByteBuffer record = journal.rawRecord(position);
+            byte[] bytes = new byte[record.remaining()];
+            record.get(bytes);
+            output.writeLong(position);
+            output.write(bytes);
+            position += bytes.length;
+        }
+        output.flush();
+        return position;
+    }
+
+    @Test
+    @SneakyThrows
+    public void disconnectMidCommand() {
+        List<ReplicatedCommand> commands = publish(0, 2);
+        SegmentedJournal journal = (SegmentedJournal) primary.journal();
+
+        try (ServerSocket fakePrimary = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            client = new ReplicationClient(standby, new InetSocketAddress(InetAddress.getLoopbackAddress(), fakePrimary.getLocalPort()));
+            client.startAsync().awaitRunning();
+
+            // ships the first command, and only the command record of the second one
+            long second;
+            try (Socket socket = fakePrimary.accept()) {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                output.writeInt(journal.segmentSize());
+                output.flush();
+                assertEquals(0, input.readLong());
+                second = ship(output, 0, 2);
+                assertEquals(second, input.readLong());
+                ship(output, second, 1);
+                Thread.sleep(200);
+                // half of the second command has arrived, but it isn't visible
+                assertEquals(second, client.position());
+                assertFalse(standby.journal().containsCommand(commands.get(1).uuid()));
+                assertEquals(1, standby.indexFactory().getIndexedCollection(ReplicatedEvent.class).size());
+            }
+
+            // the standby resumes after the last complete command
+            try (Socket socket = fakePrimary.accept()) {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                output.writeInt(journal.segmentSize());
+                output.flush();
+                assertEquals(second, input.readLong());
+                assertEquals(journal.position(), ship(output, second, 2));
+                assertEquals(journal.position(), input.readLong());
+            }
+        }
+        assertEquals(journal.position(), client.position());
+        assertReplicated(commands);
+    }
+
+    @Test
+    @SneakyThrows
+    public void oversizedRecord() {
+        List<ReplicatedCommand> commands = publish(0, 1);
+        SegmentedJournal journal = (SegmentedJournal) primary.journal();
+
+        try (ServerSocket fakePrimary = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            client = new ReplicationClient(standby, new InetSocketAddress(InetAddress.getLoopbackAddress(), fakePrimary.getLocalPort()));
+            client.startAsync().awaitRunning();
+
+            // a length no record can have closes the connection before anything is allocated for it
+            try (Socket socket = fakePrimary.accept()) {
+                socket.setSoTimeout(10000);
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                output.writeInt(journal.segmentSize());
+                output.flush();
+                assertEquals(0, input.readLong());
+                output.writeLong(0);
+                output.writeInt(Integer.MAX_VALUE);
+                output.flush();
+                assertEquals(-1, input.read());
+            }
+            assertEquals(0, client.position());
+
+            // and replication resumes once the primary behaves
+            try (Socket socket = fakePrimary.accept()) {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                output.writeInt(journal.segmentSize());
+                output.flush();
+                assertEquals(0, input.readLong());
+                assertEquals(journal.position(), ship(output, 0, 2));
+                assertEquals(journal.position(), input.readLong());
+            }
+        }
+        assertReplicated(commands);
+    }
+
+    @Test
+    @SneakyThrows
+    public void primaryRestart() {
+        FileJournal journal = (FileJournal) primary.journal();
+        journal.groupCommit(true);
+        replicate(ReplicationServer.Mode.ASYNCHRONOUS);
+        List<ReplicatedCommand> commands = publish(0, 50);
+        server.acknowledged(journal.position()).get(10, TimeUnit.SECONDS);
+
+        // records that aren't durable yet aren't shipped
+        ReplicatedCommand pending = new ReplicatedCommand();
+        pending.value = 50;
+        journal.save(pending, pending.events(primary));
+        Thread.sleep(200);
+        assertTrue(journal.durablePosition() < journal.position());
+        assertEquals(journal.durablePosition(), client.position());
+        assertFalse(standby.journal().containsCommand(pending.uuid()));
+        journal.flush();
+        commands.add(pending);
+        server.acknowledged(journal.position()).get(10, TimeUnit.SECONDS);
+
+        int port = server.port();
+        server.stopAsync().awaitTerminated();
+        primary.stopAsync().awaitTerminated();
+        journal.close();
+        primary = endpoint(new FileJournal(physicalTimeProvider, primaryDirectory, 4096));
+        serve(port, ReplicationServer.Mode.ASYNCHRONOUS);
+
+        commands.addAll(publish(51, 50));
+        server.acknowledged(primary.journal().position()).get(10, TimeUnit.SECONDS);
+        assertEquals(primary.journal().position(), client.position());
+        assertReplicated(commands);
+    }
+
+}
@@ -0,0 +1,262 @@
+package org.eventreducer;
+
+import com.google.common.base.Strings;
+import lombok.SneakyThrows;
+import org.apache.commons.net.ntp.TimeStamp;
+import org.eventreducer.annotations.Property;
+import org.eventreducer.hlc.NTPServerTimeProvider;
+import org.eventreducer.hlc.PhysicalTimeProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class TieredJournalTest {
+
+    public static class TieredJournalTestCommand extends Command<Void> {
+        @Property
+        public String value;
+
+        @Override
+        public Stream<Event> events(Endpoint endpoint) throws Exception {
+            TieredJournalTestEvent event = new TieredJournalTestEvent();
+            event.value = value;
+            return Stream.of(event);
+        }
+    }
+
+    public static class TieredJournalTestEvent extends Event {
+        @Property
+        public String value;
+    }
+
+    /**
+     * Cold tier that can hold up or fail flushes
+     */
+    private static class ColdJournal extends OffHeapJournal {
+        private volatile CountDownLatch flushing;
+        private volatile CountDownLatch released;
+        private volatile boolean failing;
+
+        ColdJournal(PhysicalTimeProvider physicalTimeProvider) {
+            super(physicalTimeProvider, 64 * 1024);
+        }
+
+        @Override
+        public void flush() throws Exception {
+            if (failing) {
+                throw new IllegalStateException("Flush failed");
+            }
+            CountDownLatch released = this.released;
+            if (released != null) {
+                flushing.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.flush();
+        }
+    }
+
+    private Endpoint endpoint;
+    private ColdJournal cold;
+    private TieredJournal journal;
+
+    @Before
+    public void setup() {
+        NTPServerTimeProvider physicalTimeProvider = new NTPServerTimeProvider();
+        physicalTimeProvider.startAsync().awaitRunning();
+        endpoint = Endpoint.builder().packagePrefix("org.eventreducer").journal(new MemoryJournal(physicalTimeProvider)).
+                indexFactory(new MemoryIndexFactory()).lockFactory(new MemoryLockFactory()).build();
+        cold = new ColdJournal(physicalTimeProvider);
+        journal = new TieredJournal(physicalTimeProvider, cold);
+        journal.endpoint(endpoint);
+    }
+
+    @After
+    @SneakyThrows
+    public void teardown() {
+        cold.failing = false;
+        journal.close();
+    }
+
+    @SneakyThrows
+    private List<TieredJournalTestCommand> save(int count, String payload) {
+        List<TieredJournalTestCommand> commands = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            TieredJournalTestCommand command = new TieredJournalTestCommand();
+            command.value = payload + i;
+            journal.save(command, command.events(endpoint));
+            commands.add(command);
+        }
+        return commands;
+    }
+
+    /**
+     * Hot commands are looked up as they were journalled, evicted ones are read from the cold tier
+     */
+    private boolean hot(Command command) {
+        return journal.findCommand(command.uuid()).get() == command;
+    }
+
+    @SneakyThrows
+    private static void eventually(BooleanSupplier condition) {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    @SneakyThrows
+    public void evictionByCount() {
+        journal.hotRecords(10);
+        List<TieredJournalTestCommand> commands = save(20, "count ");
+        journal.flush();
+
+        // every command has one event, so 5 of them fit
+        eventually(() -> !hot(commands.get(14)));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i >= 15, hot(commands.get(i)));
+            assertEquals(commands.get(i).value, ((TieredJournalTestCommand) journal.findCommand(commands.get(i).uuid()).get()).value);
+        }
+        assertEquals(20, journal.size(TieredJournalTestCommand.class));
+    }
+
+    @Test
+    @SneakyThrows
+    public void evictionByBytes() {
+        String payload = Strings.repeat("x", 1000);
+        List<TieredJournalTestCommand> commands = save(1, payload);
+        TieredJournalTestCommand first = commands.get(0);
+        long bytes = first.entitySerializer().size(first);
+        for (Event event : journal.events(first).collect(Collectors.toList())) {
+            bytes += event.entitySerializer().size(event);
+        }
+        journal.hotBytes(3 * bytes);
+        commands.addAll(save(9, payload));
+        journal.flush();
+
+        eventually(() -> !hot(commands.get(6)));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i >= 7, hot(commands.get(i)));
+        }
+        assertEquals(10, journal.size(TieredJournalTestEvent.class));
+    }
+
+    @Test
+    @SneakyThrows
+    public void readsDuringMigration() {
+        journal.hotRecords(4);
+        List<TieredJournalTestCommand> commands = save(5, "evicted ");
+        journal.flush();
+        eventually(() -> !hot(commands.get(2)));
+        long position = journal.position();
+
+        // the next commands are migrated, but the cold tier isn't flushed yet
+        cold.flushing = new CountDownLatch(1);
+        cold.released = new CountDownLatch(1);
+        commands.addAll(save(5, "unflushed "));
+        assertTrue(cold.flushing.await(10, TimeUnit.SECONDS));
+        // and the ones after them can't be migrated meanwhile
+        commands.addAll(save(5, "unmigrated "));
+        assertEquals(cold.position(), journal.position());
+        assertTrue(journal.position() > position);
+        assertFalse(cold.containsCommand(commands.get(10).uuid()));
+
+        assertReadable(commands);
+        cold.released.countDown();
+        cold.released = null;
+        journal.flush();
+        assertTrue(cold.containsCommand(commands.get(14).uuid()));
+        assertReadable(commands);
+    }
+
+    private void assertReadable(List<TieredJournalTestCommand> commands) {
+        assertEquals(commands.size(), journal.size(TieredJournalTestCommand.class));
+        assertEquals(commands.size(), journal.size(TieredJournalTestEvent.class));
+        for (TieredJournalTestCommand command : commands) {
+            TieredJournalTestCommand found = (TieredJournalTestCommand) journal.findCommand(command.uuid()).get();
+            assertEquals(command.value, found.value);
+            assertEquals(command.value, ((TieredJournalTestEvent) journal.events(command).findFirst().get()).value);
+        }
+        List<String> iterated = new ArrayList<>();
+        journal.commandIterator(TieredJournalTestCommand.class).
+                forEachRemaining(c -> iterated.add(((TieredJournalTestCommand) c).value));
+        assertEquals(commands.stream().map(c -> c.value).sorted().collect(Collectors.toList()),
+                iterated.stream().sorted().collect(Collectors.toList()));
+        List<String> between = new ArrayList<>();
+        journal.commandsBetween(commands.get(0).timestamp(), new TimeStamp(-1L), TieredJournalTestCommand.class).
+                forEachRemaining(c -> between.add(((TieredJournalTestCommand) c).value));
+        assertEquals(commands.stream().map(c -> c.value).collect(Collectors.toList()), between);
+    }
+
+    @Test
+    @SneakyThrows
+    public void migrationFailure() {
+        cold.failing = true;
+        TieredJournalTestCommand command = new TieredJournalTestCommand();
+        command.value = "failed";
+        CompletableFuture<Long> saved = journal.saveAsync(command, command.events(endpoint));
+        eventually(() -> {
+            try {
+                journal.flush();
+                return false;
+            } catch (Exception e) {
+                return e instanceof IOException && "Flush failed".equals(e.getCause().getMessage());
+            }
+        });
+        // the command isn't durable yet, but it will be once migration recovers, so it's not failed
+        try {
+            saved.get(TieredJournal.RETRY_DELAY / 2, TimeUnit.MILLISECONDS);
+            fail("Command saved despite the failure");
+        } catch (TimeoutException e) {
+        }
+        assertFalse(saved.isDone());
+        // journalling is rejected until migration recovers, the command stays readable
+        try {
+            save(1, "rejected ");
+            fail("Command journalled despite the failure");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            journal.flush();
+            fail("Flushed despite the failure");
+        } catch (IOException e) {
+        }
+        assertTrue(hot(command));
+
+        // migration is retried
+        cold.failing = false;
+        eventually(() -> {
+            try {
+                journal.flush();
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        });
+        assertEquals(1, (long) saved.get(10, TimeUnit.SECONDS));
+        assertTrue(cold.containsCommand(command.uuid()));
+        TieredJournalTestCommand next = new TieredJournalTestCommand();
+        next.value = "recovered";
+        assertEquals(1, (long) journal.saveAsync(next, next.events(endpoint)).get(10, TimeUnit.SECONDS));
+        assertEquals(2, cold.size(TieredJournalTestCommand.class));
+        assertEquals(command.timestamp(), cold.findCommand(command.uuid()).get().timestamp());
+    }
+
+}